@@ -11,6 +11,7 @@ plugins {
     alias(libs.plugins.changelog) // Gradle Changelog Plugin
     alias(libs.plugins.qodana) // Gradle Qodana Plugin
     alias(libs.plugins.kover) // Gradle Kover Plugin
+    alias(libs.plugins.jmh) // Gradle JMH Plugin
 }
 
 group = properties("pluginGroup").get()
@@ -31,6 +32,13 @@ kotlin {
     jvmToolchain(17)
 }
 
+// Benchmarks of the graph pipeline need the IDE classes at runtime, the plugin itself gets them from the IDE
+configurations {
+    named("jmhImplementation") {
+        extendsFrom(compileOnly.get())
+    }
+}
+
 // Configure Gradle IntelliJ Plugin - read more: https://plugins.jetbrains.com/docs/intellij/tools-gradle-intellij-plugin.html
 intellij {
     pluginName = properties("pluginName")
@@ -64,6 +72,20 @@ koverReport {
     }
 }
 
+// Configure Gradle JMH Plugin - read more: https://github.com/melix/jmh-gradle-plugin
+// Run with `./gradlew jmh`, narrow down with `-PjmhIncludes=<regex>`
+jmh {
+    jmhVersion = libs.versions.jmh
+    includes = providers.gradleProperty("jmhIncludes").map { listOf(it) }.orElse(listOf(".*"))
+    benchmarkMode = listOf("thrpt", "sample")
+    timeUnit = "ms"
+    profilers = listOf("gc")
+    resultFormat = "JSON"
+    warmupIterations = 3
+    iterations = 5
+    fork = 1
+}
+
 tasks {
     wrapper {
         gradleVersion = properties("gradleVersion").get()
@@ -0,0 +1,88 @@
+package com.github.pberdnik.dependenciesanalyzerplugin.benchmark
+
+import com.github.pberdnik.dependenciesanalyzerplugin.old.graph.CsrGraph
+import com.github.pberdnik.dependenciesanalyzerplugin.old.graph.DependencyGraph
+import com.github.pberdnik.dependenciesanalyzerplugin.old.graph.GraphConfig
+import com.github.pberdnik.dependenciesanalyzerplugin.old.graph.Node
+import com.github.pberdnik.dependenciesanalyzerplugin.old.graph.asDependencyGraph
+import com.github.pberdnik.dependenciesanalyzerplugin.storage.NodeViewsBuilder
+import com.github.pberdnik.dependenciesanalyzerplugin.views.NodeView
+import com.intellij.openapi.vfs.VirtualFile
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+
+/**
+ * Stages of graph analysis on a [SyntheticProject], from stored code files to the project view decorations.
+ */
+@State(Scope.Benchmark)
+open class GraphPipelineBenchmark {
+    @Param("10000", "80000")
+    var size = 0
+
+    @Param("40")
+    var modules = 0
+
+    @Param("GEOMETRIC", "PARETO")
+    lateinit var fanOut: FanOutDistribution
+
+    @Param("8")
+    var meanFanOut = 0.0
+
+    @Param("0.01")
+    var cycleDensity = 0.0
+
+    private lateinit var project: SyntheticProject
+    private lateinit var config: GraphConfig
+    private lateinit var dependencyGraph: DependencyGraph
+    private lateinit var csrGraph: CsrGraph
+    private lateinit var projectDir: VirtualFile
+    private lateinit var virtualFiles: List<Pair<Node, VirtualFile>>
+
+    @Setup
+    fun setUp() {
+        project = SyntheticProject(size, modules, fanOut, meanFanOut, cycleDensity)
+        config = project.config()
+        dependencyGraph = asDependencyGraph(project.codeFiles, config)
+        dependencyGraph.process(config)
+        csrGraph = CsrGraph.fromCodeFiles(project.codeFiles, config)
+        csrGraph.process(config)
+        val fileTree = SyntheticFileTree()
+        projectDir = fileTree.find(project.projectDir)
+        virtualFiles = dependencyGraph.nodes.values.map { it to fileTree.find(it.path) }
+    }
+
+    @Benchmark
+    fun asDependencyGraph(): DependencyGraph = asDependencyGraph(project.codeFiles, config)
+
+    @Benchmark
+    fun process(): DependencyGraph {
+        dependencyGraph.process(config)
+        return dependencyGraph
+    }
+
+    @Benchmark
+    fun processYellow(): CsrGraph {
+        csrGraph.processYellow()
+        return csrGraph
+    }
+
+    @Benchmark
+    fun nodeViews(): Map<String, NodeView> {
+        val builder = NodeViewsBuilder(projectDir)
+        virtualFiles.forEach { (node, virtualFile) -> builder.add(node, virtualFile) }
+        return builder.build()
+    }
+
+    /**
+     * Whole graph processing straight from code files, without building the [Node] graph first.
+     */
+    @Benchmark
+    fun csrProcess(): CsrGraph {
+        val csrGraph = CsrGraph.fromCodeFiles(project.codeFiles, config)
+        csrGraph.process(config)
+        return csrGraph
+    }
+}
@@ -0,0 +1,41 @@
+package com.github.pberdnik.dependenciesanalyzerplugin.benchmark
+
+import com.intellij.packageDependencies.actions.MyBackwardDependenciesBuilder
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+
+/**
+ * Inverted index used for backward dependencies, over forward dependencies of a [SyntheticProject]. Sizes go from a
+ * small project to one larger than [GraphPipelineBenchmark] covers, to show that the inversion stays linear.
+ */
+@State(Scope.Benchmark)
+open class InvertDependenciesBenchmark {
+    @Param("1000", "10000", "100000")
+    var size = 0
+
+    @Param("40")
+    var modules = 0
+
+    @Param("GEOMETRIC", "PARETO")
+    lateinit var fanOut: FanOutDistribution
+
+    @Param("8")
+    var meanFanOut = 0.0
+
+    @Param("0.01")
+    var cycleDensity = 0.0
+
+    private lateinit var forwardDependencies: Map<String, Set<String>>
+
+    @Setup
+    fun setUp() {
+        val project = SyntheticProject(size, modules, fanOut, meanFanOut, cycleDensity)
+        forwardDependencies = project.codeFiles.mapValues { (_, codeFile) -> codeFile.dependencies.toSet() }
+    }
+
+    @Benchmark
+    fun invertDependencies(): Map<String, Set<String>> = MyBackwardDependenciesBuilder.invert(forwardDependencies)
+}
@@ -0,0 +1,105 @@
+package com.github.pberdnik.dependenciesanalyzerplugin.benchmark
+
+import com.github.pberdnik.dependenciesanalyzerplugin.old.file.CodeFile
+import com.github.pberdnik.dependenciesanalyzerplugin.old.graph.GraphConfig
+import com.github.pberdnik.dependenciesanalyzerplugin.storage.GraphConfigState
+import kotlin.math.pow
+import kotlin.math.roundToInt
+import kotlin.random.Random
+
+private const val PACKAGE_SIZE = 30
+private const val SAME_MODULE_SHARE = 0.7
+
+enum class FanOutDistribution {
+    /** Every file has the mean number of dependencies. */
+    CONSTANT,
+
+    /** Most files have few dependencies, the mean is kept. */
+    GEOMETRIC,
+
+    /** Pareto distributed with a heavy tail of files depending on hundreds of others, like DI modules and facades. */
+    PARETO
+}
+
+/**
+ * Deterministic synthetic project: the same parameters and [seed] always give the same files and dependencies.
+ *
+ * Files are split into [modules] contiguous blocks and packages of [PACKAGE_SIZE] files. Each file depends on earlier
+ * files only, mostly of its own module, so the graph is acyclic. With probability [cycleDensity] a file also depends on
+ * a later file of its module, which closes a cycle through it.
+ */
+class SyntheticProject(
+    val size: Int,
+    val modules: Int,
+    val fanOut: FanOutDistribution,
+    val meanFanOut: Double,
+    val cycleDensity: Double,
+    seed: Long = 42
+) {
+    val projectDir = "/synthetic"
+    val moduleNames = List(modules) { "module$it" }
+    val codeFiles: MutableMap<String, CodeFile>
+
+    private val random = Random(seed)
+    private val paths = Array(size) { i -> path(i) }
+
+    init {
+        codeFiles = LinkedHashMap(size)
+        for (i in 0 until size) {
+            val dependencies = dependencies(i).mapTo(mutableListOf()) { paths[it] }
+            val codeFile = CodeFile(paths[i], moduleNames[moduleOf(i)], "Class$i.kt", random.nextLong(500, 20_000), dependencies)
+            codeFile.stamp = 1
+            codeFiles[paths[i]] = codeFile
+        }
+    }
+
+    /**
+     * Config with the first [greenModulesShare] of the modules marked green.
+     */
+    fun config(greenModulesShare: Double = 0.5): GraphConfig {
+        val state = GraphConfigState()
+        state.greenModules.addAll(moduleNames.take((modules * greenModulesShare).roundToInt()))
+        return GraphConfig(projectDir, state)
+    }
+
+    private fun dependencies(i: Int): Set<Int> {
+        if (i == 0) return emptySet()
+        val moduleStart = moduleStart(moduleOf(i))
+        val moduleEnd = moduleStart(moduleOf(i) + 1)
+        val count = minOf(fanOutCount(), i)
+        val dependencies = HashSet<Int>(count + 1)
+        repeat(count) {
+            dependencies += if (i > moduleStart && random.nextDouble() < SAME_MODULE_SHARE) {
+                random.nextInt(moduleStart, i)
+            } else {
+                random.nextInt(0, i)
+            }
+        }
+        if (i + 1 < moduleEnd && random.nextDouble() < cycleDensity) {
+            dependencies += random.nextInt(i + 1, moduleEnd)
+        }
+        return dependencies
+    }
+
+    private fun fanOutCount(): Int = when (fanOut) {
+        FanOutDistribution.CONSTANT -> meanFanOut.roundToInt()
+        FanOutDistribution.GEOMETRIC -> {
+            val p = 1.0 / (meanFanOut + 1)
+            var count = 0
+            while (random.nextDouble() >= p) count++
+            count
+        }
+        // alpha = 2 gives mean = 2 * minimum
+        FanOutDistribution.PARETO -> (meanFanOut / 2 / (1 - random.nextDouble()).pow(0.5)).toInt()
+    }
+
+    private fun moduleOf(i: Int) = (i.toLong() * modules / size).toInt()
+
+    private fun moduleStart(module: Int) = ((module.toLong() * size + modules - 1) / modules).toInt()
+
+    private fun path(i: Int): String {
+        val module = moduleOf(i)
+        val pkg = (i - moduleStart(module)) / PACKAGE_SIZE
+        return "$projectDir/${moduleNames[module]}/src/main/kotlin/com/example/p${pkg / 10}/p$pkg/Class$i.kt"
+    }
+}
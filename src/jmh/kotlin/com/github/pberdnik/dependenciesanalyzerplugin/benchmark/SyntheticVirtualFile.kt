@@ -0,0 +1,54 @@
+package com.github.pberdnik.dependenciesanalyzerplugin.benchmark
+
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.openapi.vfs.VirtualFileSystem
+import java.io.InputStream
+import java.io.OutputStream
+
+/**
+ * In-memory file tree for paths of a [SyntheticProject], enough for code that only walks parents and reads paths.
+ */
+class SyntheticFileTree {
+    private val files = HashMap<String, SyntheticVirtualFile>()
+
+    fun find(path: String): SyntheticVirtualFile = files.getOrPut(path) {
+        val separator = path.lastIndexOf('/')
+        val parent = if (separator > 0) find(path.substring(0, separator)) else null
+        SyntheticVirtualFile(path, path.substring(separator + 1), parent)
+    }
+}
+
+class SyntheticVirtualFile(
+    private val path: String,
+    private val name: String,
+    private val parent: SyntheticVirtualFile?
+) : VirtualFile() {
+    override fun getName() = name
+
+    override fun getFileSystem(): VirtualFileSystem = throw UnsupportedOperationException()
+
+    override fun getPath() = path
+
+    override fun isWritable() = false
+
+    override fun isDirectory() = !name.contains('.')
+
+    override fun isValid() = true
+
+    override fun getParent() = parent
+
+    override fun getChildren(): Array<VirtualFile> = EMPTY_ARRAY
+
+    override fun getOutputStream(requestor: Any?, newModificationStamp: Long, newTimeStamp: Long): OutputStream =
+        throw UnsupportedOperationException()
+
+    override fun contentsToByteArray(): ByteArray = throw UnsupportedOperationException()
+
+    override fun getTimeStamp() = 0L
+
+    override fun getLength() = 0L
+
+    override fun refresh(asynchronous: Boolean, recursive: Boolean, postRunnable: Runnable?) = Unit
+
+    override fun getInputStream(): InputStream = throw UnsupportedOperationException()
+}
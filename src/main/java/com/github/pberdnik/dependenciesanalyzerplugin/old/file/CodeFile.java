@@ -3,6 +3,7 @@ package com.github.pberdnik.dependenciesanalyzerplugin.old.file;
 import com.intellij.util.xmlb.annotations.Attribute;
 import com.intellij.util.xmlb.annotations.Property;
 import com.intellij.util.xmlb.annotations.Tag;
+import com.intellij.util.xmlb.annotations.Transient;
 import com.intellij.util.xmlb.annotations.XCollection;
 
 import java.io.Serializable;
@@ -26,6 +27,25 @@ public class CodeFile implements Serializable {
     @Attribute("size")
     public long size = 0;
 
+    /**
+     * Time stamp of the file when its dependencies were resolved or, for a {@link #dependencyOnly} file, when it was seen
+     * as a dependency. 0 if it isn't known, like for dependency-only files of graphs stored before it was kept for them.
+     */
+    @Attribute("stamp")
+    public long stamp = 0;
+
+    /**
+     * Whether the file was only seen as a dependency of analyzed files, so its own {@link #dependencies} weren't resolved.
+     */
+    @Attribute("dependencyOnly")
+    public boolean dependencyOnly = false;
+
+    /**
+     * Id of {@link #path} in {@code PathIds}, given on the first filter check of the file, -1 before. Not stored.
+     */
+    @Transient
+    public transient int pathId = -1;
+
     @Tag("dependencies")
     @XCollection(elementName = "file", valueAttributeName = "path")
     public List<String> dependencies;
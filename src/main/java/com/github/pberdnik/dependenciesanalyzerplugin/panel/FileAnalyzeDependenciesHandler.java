@@ -16,12 +16,22 @@
 
 package com.github.pberdnik.dependenciesanalyzerplugin.panel;
 
+import com.github.pberdnik.dependenciesanalyzerplugin.actions.CodeFileConverter;
 import com.github.pberdnik.dependenciesanalyzerplugin.actions.SaveAnalysisResultActionExtensionsKt;
+import com.github.pberdnik.dependenciesanalyzerplugin.old.file.CodeFile;
+import com.github.pberdnik.dependenciesanalyzerplugin.storage.AnalysisMetrics;
+import com.github.pberdnik.dependenciesanalyzerplugin.storage.GraphConfigState;
+import com.github.pberdnik.dependenciesanalyzerplugin.storage.GraphConfigStorageService;
+import com.github.pberdnik.dependenciesanalyzerplugin.storage.GraphShardWriter;
+import com.github.pberdnik.dependenciesanalyzerplugin.storage.GraphStorageService;
+import com.github.pberdnik.dependenciesanalyzerplugin.storage.IncrementalDependenciesCache;
+import com.github.pberdnik.dependenciesanalyzerplugin.storage.StoredGraph;
 import com.github.pberdnik.dependenciesanalyzerplugin.toolwindow.FileDependenciesToolWindow;
 import com.intellij.analysis.AnalysisScope;
 import com.intellij.analysis.PerformAnalysisInBackgroundOption;
 import com.intellij.codeInsight.CodeInsightBundle;
 import com.intellij.ide.projectView.ProjectView;
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.ProgressManager;
@@ -41,6 +51,8 @@ import javax.swing.*;
 import java.util.*;
 
 public class FileAnalyzeDependenciesHandler {
+  private static final Logger LOG = Logger.getInstance(FileAnalyzeDependenciesHandler.class);
+
   @NotNull
   protected final Project myProject;
   private final List<? extends AnalysisScope> myScopes;
@@ -100,8 +112,35 @@ public class FileAnalyzeDependenciesHandler {
     return true;
   }
 
-  private MyDependenciesBuilder createDependenciesBuilder(AnalysisScope scope) {
-    return new MyForwardDependenciesBuilder(myProject, scope, myTransitiveBorder);
+  private MyDependenciesBuilder createDependenciesBuilder(AnalysisScope scope, GraphShardWriter writer, CodeFileConverter converter,
+                                                          AnalysisMetrics metrics) {
+    final MyForwardDependenciesBuilder builder = new MyForwardDependenciesBuilder(myProject, scope, myTransitiveBorder);
+    builder.setMetrics(metrics);
+    builder.setFileFilter(file -> !converter.isFiltered(file));
+    final GraphConfigState config = GraphConfigStorageService.Companion.getInstance(myProject).getState();
+    builder.setParallelism(config.analysisThreads);
+    builder.setFastMode(config.fastMode);
+    builder.setBoundedMemory(config.boundedMemory);
+    if (config.incrementalAnalysis) {
+      final StoredGraph graph = GraphStorageService.Companion.getInstance(myProject).getGraph();
+      // stored dependencies were filtered with the settings of their analysis, they can't be reused under others
+      if (converter.getAnalysisFingerprint().equals(graph.getFingerprint())) {
+        builder.setDependenciesCache(new IncrementalDependenciesCache(graph.codeFiles(), scope));
+      }
+      else {
+        LOG.info("Analyzing all files again, the stored graph was analyzed with other settings");
+      }
+    }
+    // results are written out shard by shard while the analysis is running
+    builder.setDependenciesListener((file, dependencies) -> {
+      final AnalysisMetrics.Measurement conversion = metrics.start();
+      final CodeFile codeFile = converter.convert(file, dependencies);
+      if (codeFile != null) {
+        writer.add(codeFile);
+      }
+      conversion.stop(AnalysisMetrics.CONVERSION);
+    });
+    return builder;
   }
 
   private String getPanelDisplayName(final AnalysisScope scope) {
@@ -114,17 +153,23 @@ public class FileAnalyzeDependenciesHandler {
 
   private void perform(List<MyDependenciesBuilder> builders, @NotNull ProgressIndicator indicator) {
     try {
-      for (AnalysisScope scope : myScopes) {
-        builders.add(createDependenciesBuilder(scope));
-      }
-      for (MyDependenciesBuilder builder : builders) {
-        builder.analyze();
+      final GraphStorageService storage = GraphStorageService.Companion.getInstance(myProject);
+      final CodeFileConverter converter = new CodeFileConverter(storage.getGraphConfig());
+      final GraphShardWriter writer = storage.newGraphWriter(converter.getAnalysisFingerprint());
+      try {
+        final AnalysisMetrics metrics = new AnalysisMetrics();
+        for (AnalysisScope scope : myScopes) {
+          builders.add(createDependenciesBuilder(scope, writer, converter, metrics));
+        }
+        for (MyDependenciesBuilder builder : builders) {
+          builder.analyze();
+        }
+        SaveAnalysisResultActionExtensionsKt.saveAnalysisResult(myProject, writer, converter, metrics);
       }
-      Map<PsiFile, Set<PsiFile>> myDependencies = new HashMap<>();
-      for (MyDependenciesBuilder builder : builders) {
-        myDependencies.putAll(builder.getDependencies());
+      finally {
+        // a canceled analysis leaves its shards for recovery, but must not block live updates
+        storage.releaseGraphWriter(writer);
       }
-      SaveAnalysisResultActionExtensionsKt.performAction(myDependencies, myProject);
     } catch (IndexNotReadyException e) {
       DumbService.getInstance(myProject).showDumbModeNotification(
               CodeInsightBundle.message("analyze.dependencies.not.available.notification.indexing"));
@@ -18,6 +18,9 @@ import com.intellij.lang.LangBundle;
 import com.intellij.openapi.Disposable;
 import com.intellij.openapi.actionSystem.*;
 import com.intellij.openapi.actionSystem.ex.ComboBoxAction;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
+import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.fileEditor.FileEditorManager;
 import com.intellij.openapi.fileEditor.FileEditorManagerEvent;
@@ -33,12 +36,15 @@ import com.intellij.openapi.roots.ProjectFileIndex;
 import com.intellij.openapi.roots.ProjectRootManager;
 import com.intellij.openapi.ui.Messages;
 import com.intellij.openapi.ui.popup.JBPopupFactory;
+import com.intellij.openapi.util.Trinity;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.packageDependencies.DependencyRule;
 import com.intellij.packageDependencies.DependencyUISettings;
 import com.intellij.packageDependencies.DependencyValidationManager;
+import com.intellij.packageDependencies.FileIdDependencies;
 import com.intellij.packageDependencies.MyDependenciesBuilder;
+import com.intellij.packageDependencies.MyDependencyPathFinder;
 import com.intellij.packageDependencies.actions.MyBackwardDependenciesBuilder;
 import com.intellij.packageDependencies.actions.MyForwardDependenciesBuilder;
 import com.intellij.packageDependencies.ui.*;
@@ -54,6 +60,7 @@ import com.intellij.usageView.UsageViewBundle;
 import com.intellij.util.EditSourceOnDoubleClickHandler;
 import com.intellij.util.PlatformIcons;
 import com.intellij.util.Processor;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import com.intellij.util.messages.MessageBusConnection;
 import com.intellij.util.ui.UIUtil;
 import com.intellij.util.ui.tree.TreeUtil;
@@ -80,7 +87,7 @@ public final class FileDependenciesPanel extends JPanel implements Disposable, D
   private final TreeExpansionMonitor myRightTreeExpansionMonitor;
 
   private final Marker myRightTreeMarker;
-  private Set<VirtualFile> myIllegalsInRightTree = new HashSet<>();
+  private volatile Set<VirtualFile> myIllegalsInRightTree = new HashSet<>();
 
   private final Project myProject;
   private final List<MyDependenciesBuilder> myBuilders;
@@ -95,6 +102,19 @@ public final class FileDependenciesPanel extends JPanel implements Disposable, D
 
   private PsiFile mSelectedPsiFile;
 
+  private static final int MAX_CACHED_RIGHT_TREES = 32;
+  // access ordered, so even reads change it: only used on the EDT, like every caller of rebuild() and updateRightTreeModel()
+  private final Map<Trinity<String, Integer, Integer>, TreeModel> myRightTreeCache = new LinkedHashMap<>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Trinity<String, Integer, Integer>, TreeModel> eldest) {
+      return size() > MAX_CACHED_RIGHT_TREES;
+    }
+  };
+  private Trinity<String, Integer, Integer> myRightTreeKey;
+  private int myIllegalDependenciesVersion;
+  private volatile boolean myTransitive;
+  private volatile int myIllegalDependenciesRequest;
+
   public FileDependenciesPanel(Project project, final List<MyDependenciesBuilder> builders, final Set<PsiFile> excluded) {
     super(new BorderLayout());
     myBuilders = builders;
@@ -102,11 +122,12 @@ public final class FileDependenciesPanel extends JPanel implements Disposable, D
     final MyDependenciesBuilder main = myBuilders.get(0);
     myScopeOfInterest = main instanceof MyBackwardDependenciesBuilder ? ((MyBackwardDependenciesBuilder) main).getScopeOfInterest() : null;
     myTransitiveBorder = main instanceof MyForwardDependenciesBuilder ? ((MyForwardDependenciesBuilder) main).getTransitiveBorder() : 0;
-    myDependencies = new HashMap<>();
+    myDependencies = main instanceof MyForwardDependenciesBuilder && ((MyForwardDependenciesBuilder) main).isBoundedMemory()
+                     ? new FileIdDependencies().asPsiMap(project)
+                     : new HashMap<>();
     myIllegalDependencies = new HashMap<>();
     for (MyDependenciesBuilder builder : builders) {
       myDependencies.putAll(builder.getDependencies());
-      putAllDependencies(builder);
     }
     exclude(excluded);
     myProject = project;
@@ -125,6 +146,7 @@ public final class FileDependenciesPanel extends JPanel implements Disposable, D
     };
 
     updateRightTreeModel();
+    updateIllegalDependencies();
 
     MessageBusConnection connection = myProject.getMessageBus().connect(myProject);
     connection.subscribe(FileEditorManagerListener.FILE_EDITOR_MANAGER, new FileEditorManagerListener() {
@@ -146,21 +168,45 @@ public final class FileDependenciesPanel extends JPanel implements Disposable, D
     setEmptyText(mySettings.UI_FILTER_LEGALS);
   }
 
-  private void putAllDependencies(MyDependenciesBuilder builder) {
-    final Map<PsiFile, Map<DependencyRule, Set<PsiFile>>> dependencies = builder.getIllegalDependencies();
-    for (Map.Entry<PsiFile, Map<DependencyRule, Set<PsiFile>>> entry : dependencies.entrySet()) {
-      myIllegalDependencies.put(entry.getKey().getVirtualFile(), entry.getValue());
-    }
+  /**
+   * Finds illegal dependencies of all builders in a non-blocking read action on a pooled thread: checking them reads
+   * every dependency, which looks up PSI files of the whole scope after a bounded memory analysis. Illegal dependencies
+   * of the selected file are marked once they are found.
+   */
+  private void updateIllegalDependencies() {
+    final List<MyDependenciesBuilder> builders = new ArrayList<>(myBuilders);
+    final int request = ++myIllegalDependenciesRequest;
+    ReadAction.nonBlocking(() -> {
+        final Map<VirtualFile, Map<DependencyRule, Set<PsiFile>>> illegalDependencies = new HashMap<>();
+        for (MyDependenciesBuilder builder : builders) {
+          for (Map.Entry<PsiFile, Map<DependencyRule, Set<PsiFile>>> entry : builder.getIllegalDependencies().entrySet()) {
+            ProgressManager.checkCanceled();
+            illegalDependencies.put(entry.getKey().getVirtualFile(), entry.getValue());
+          }
+        }
+        for (PsiFile psiFile : myExcluded) {
+          illegalDependencies.remove(psiFile.getVirtualFile());
+        }
+        return illegalDependencies;
+      })
+      .expireWith(this)
+      .finishOnUiThread(ModalityState.any(), illegalDependencies -> {
+        if (request != myIllegalDependenciesRequest) return;
+        myIllegalDependencies = illegalDependencies;
+        myIllegalDependenciesVersion++;
+        updateRightTreeModel();
+      })
+      .submit(AppExecutorUtil.getAppExecutorService());
   }
 
   private void processDependencies(final Set<? extends PsiFile> searchIn, final Set<? extends PsiFile> searchFor, Processor<? super List<PsiFile>> processor) {
     if (myTransitiveBorder == 0) return;
     Set<PsiFile> initialSearchFor = new HashSet<>(searchFor);
     for (MyDependenciesBuilder builder : myBuilders) {
+      final MyDependencyPathFinder pathFinder = builder.getPathFinder();
       for (PsiFile from : searchIn) {
         for (PsiFile to : initialSearchFor) {
-          final List<List<PsiFile>> paths = builder.findPaths(from, to);
-          paths.sort(Comparator.comparingInt(List::size));
+          final List<List<PsiFile>> paths = pathFinder.findShortestPaths(from, to);
           for (List<PsiFile> path : paths) {
             if (!path.isEmpty()){
               path.add(0, from);
@@ -176,7 +222,7 @@ public final class FileDependenciesPanel extends JPanel implements Disposable, D
   private void exclude(final Set<? extends PsiFile> excluded) {
     for (PsiFile psiFile : excluded) {
       myDependencies.remove(psiFile);
-      myIllegalDependencies.remove(psiFile);
+      myIllegalDependencies.remove(psiFile.getVirtualFile());
     }
   }
 
@@ -217,6 +263,7 @@ public final class FileDependenciesPanel extends JPanel implements Disposable, D
       }
     }
     group.add(new GroupByScopeTypeAction());
+    group.add(new TransitiveAction());
     //group.add(new GroupByFilesAction());
     group.add(new FilterLegalsAction());
     group.add(new MarkAsIllegalAction());
@@ -237,11 +284,10 @@ public final class FileDependenciesPanel extends JPanel implements Disposable, D
   }
 
   private void rebuild() {
-    myIllegalDependencies = new HashMap<>();
-    for (MyDependenciesBuilder builder : myBuilders) {
-      putAllDependencies(builder);
-    }
+    ApplicationManager.getApplication().assertIsDispatchThread();
+    myRightTreeCache.clear();
     updateRightTreeModel();
+    updateIllegalDependencies();
   }
 
   private void initTree(final MyTree tree, boolean isRightTree) {
@@ -257,52 +303,75 @@ public final class FileDependenciesPanel extends JPanel implements Disposable, D
     PopupHandler.installUnknownPopupHandler(tree, createTreePopupActions(isRightTree));
   }
 
+  /**
+   * Shows dependencies of the selected file. Trees are built in a non-blocking read action on a pooled thread, a newer
+   * selection cancels a build which hasn't finished yet. Built trees are cached per file, analysis version and version
+   * of the illegal dependencies they mark, so switching back to a file doesn't build its tree again.
+   */
   private void updateRightTreeModel() {
-    Set<VirtualFile> forwardDeps = new HashSet<>();
-    Set<VirtualFile> backwardDeps = new HashSet<>();
-    Set<VirtualFile> cycleDeps = new HashSet<>();
-    Set<PsiFile> scope = new HashSet<>();
-    Set<VirtualFile> vScope = new HashSet<>();
-    if (mSelectedPsiFile != null) {
-      scope.add(mSelectedPsiFile);
-      vScope.add(mSelectedPsiFile.getVirtualFile());
-    } else {
-      return;
-    }
-    myIllegalsInRightTree = new HashSet<>();
-    for (PsiFile psiFile : scope) {
-      Map<DependencyRule, Set<PsiFile>> illegalDeps = myIllegalDependencies.get(psiFile.getVirtualFile());
-      if (illegalDeps != null) {
-        for (final DependencyRule rule : illegalDeps.keySet()) {
-          final Set<PsiFile> files = illegalDeps.get(rule);
-          for (PsiFile file : files) {
-            myIllegalsInRightTree.add(file.getVirtualFile());
-          }
+    if (mSelectedPsiFile == null) return;
+    final VirtualFile selectedFile = mSelectedPsiFile.getVirtualFile();
+    if (selectedFile == null) return;
+    final Trinity<String, Integer, Integer> key =
+      Trinity.create(selectedFile.getPath(), mGraphStorageService.getAnalysisVersion(), myIllegalDependenciesVersion);
+    myRightTreeKey = key;
+    final Set<VirtualFile> illegals = new HashSet<>();
+    Map<DependencyRule, Set<PsiFile>> illegalDeps = myIllegalDependencies.get(selectedFile);
+    if (illegalDeps != null) {
+      for (final DependencyRule rule : illegalDeps.keySet()) {
+        final Set<PsiFile> files = illegalDeps.get(rule);
+        for (PsiFile file : files) {
+          illegals.add(file.getVirtualFile());
         }
       }
-      final List<VirtualFile> forwardFiles = mGraphStorageService.getForwardDepsForPath(psiFile.getVirtualFile().getPath()); //
-      for (VirtualFile file : forwardFiles) {
-        if (file != null && file.isValid()) {
-          forwardDeps.add(file);
-        }
-      }
-      final List<VirtualFile> backwardFiles = mGraphStorageService.getBackwardDepsForPath(psiFile.getVirtualFile().getPath()); //
-      for (VirtualFile file : backwardFiles) {
-        if (file != null && file.isValid()) {
-          backwardDeps.add(file);
-        }
-      }
-      final List<VirtualFile> cycleFiles = mGraphStorageService.getCycleDepsForPath(psiFile.getVirtualFile().getPath()); //
-      for (VirtualFile file : cycleFiles) {
-        if (file != null && file.isValid()) {
-          cycleDeps.add(file);
+    }
+    myIllegalsInRightTree = illegals;
+    final TreeModel cached = myRightTreeCache.get(key);
+    if (cached != null) {
+      setRightTreeModel(cached);
+      return;
+    }
+    ReadAction.nonBlocking(() -> buildRightTreeModel(selectedFile))
+      .coalesceBy(this)
+      .expireWith(this)
+      .finishOnUiThread(ModalityState.any(), model -> {
+        myRightTreeCache.put(key, model);
+        if (key.equals(myRightTreeKey)) {
+          setRightTreeModel(model);
         }
+      })
+      .submit(AppExecutorUtil.getAppExecutorService());
+  }
+
+  private TreeModel buildRightTreeModel(VirtualFile selectedFile) {
+    final String path = selectedFile.getPath();
+    final Trinity<String, Integer, Boolean> indexKey = Trinity.create(path, mGraphStorageService.getAnalysisVersion(), myTransitive);
+    final Set<VirtualFile> forwardDeps = validFiles(myTransitive
+                                                    ? mGraphStorageService.getTransitiveForwardDepsForPath(path)
+                                                    : mGraphStorageService.getForwardDepsForPath(path));
+    final Set<VirtualFile> backwardDeps = validFiles(myTransitive
+                                                     ? mGraphStorageService.getTransitiveBackwardDepsForPath(path)
+                                                     : mGraphStorageService.getBackwardDepsForPath(path));
+    final Set<VirtualFile> cycleDeps = validFiles(mGraphStorageService.getCycleDepsForPath(path));
+    forwardDeps.remove(selectedFile);
+    backwardDeps.remove(selectedFile);
+    return buildTreeModel(forwardDeps, backwardDeps, cycleDeps, myRightTreeMarker, indexKey);
+  }
+
+  private static Set<VirtualFile> validFiles(VirtualFile[] files) {
+    Set<VirtualFile> result = new HashSet<>(files.length);
+    for (VirtualFile file : files) {
+      ProgressManager.checkCanceled();
+      if (file != null && file.isValid()) {
+        result.add(file);
       }
     }
-    forwardDeps.removeAll(vScope);
-    backwardDeps.removeAll(vScope);
+    return result;
+  }
+
+  private void setRightTreeModel(TreeModel model) {
     myRightTreeExpansionMonitor.freeze();
-    myRightTree.setModel(buildTreeModel(forwardDeps, backwardDeps, cycleDeps, myRightTreeMarker));
+    myRightTree.setModel(model);
     myRightTreeExpansionMonitor.restore();
     expandFirstLevel(myRightTree);
   }
@@ -324,8 +393,8 @@ public final class FileDependenciesPanel extends JPanel implements Disposable, D
     return group;
   }
 
-  private TreeModel buildTreeModel(Set<VirtualFile> forwardDeps, Set<VirtualFile> backwardDeps, Set<VirtualFile> cycleDeps, Marker marker) {
-    return MyFileTreeModelBuilder.createTreeModel(myProject, false, forwardDeps, backwardDeps, cycleDeps, marker, mySettings);
+  private TreeModel buildTreeModel(Set<VirtualFile> forwardDeps, Set<VirtualFile> backwardDeps, Set<VirtualFile> cycleDeps, Marker marker, Object indexKey) {
+    return MyFileTreeModelBuilder.createTreeModel(myProject, false, forwardDeps, backwardDeps, cycleDeps, marker, mySettings, indexKey);
   }
 
   private static void expandFirstLevel(Tree tree) {
@@ -418,6 +487,10 @@ public final class FileDependenciesPanel extends JPanel implements Disposable, D
         append(UsageViewBundle.message("node.invalid") + " ", SimpleTextAttributes.ERROR_ATTRIBUTES);
       }
       append(node.toString(), node.hasMarked() && !selected ? SimpleTextAttributes.ERROR_ATTRIBUTES : SimpleTextAttributes.REGULAR_ATTRIBUTES);
+      if (node instanceof LazyDirectoryNode) {
+        append(" " + ((LazyDirectoryNode) node).getFilesCount(), SimpleTextAttributes.GRAYED_ATTRIBUTES);
+        return;
+      }
       PsiElement psiElement = node.getPsiElement();
       if (psiElement instanceof PsiFile) {
         String path = ((PsiFile) psiElement).getVirtualFile().getPath();
@@ -494,6 +567,24 @@ public final class FileDependenciesPanel extends JPanel implements Disposable, D
   }
 
 
+  private final class TransitiveAction extends ToggleAction {
+    TransitiveAction() {
+      super("Show Transitive Dependencies", "Show all files the selected file depends on and all files depending on it, directly or not",
+            AllIcons.Hierarchy.Subtypes);
+    }
+
+    @Override
+    public boolean isSelected(@NotNull AnActionEvent event) {
+      return myTransitive;
+    }
+
+    @Override
+    public void setSelected(@NotNull AnActionEvent event, boolean flag) {
+      myTransitive = flag;
+      rebuild();
+    }
+  }
+
   private final class FilterLegalsAction extends ToggleAction {
     FilterLegalsAction() {
       super(CodeInsightBundle.messagePointer("action.show.illegals.only"),
@@ -631,7 +722,9 @@ public final class FileDependenciesPanel extends JPanel implements Disposable, D
     public void actionPerformed(@NotNull final AnActionEvent e) {
       final AnalysisScope scope = getScope();
       LOG.assertTrue(scope != null);
-      final MyDependenciesBuilder builder = new MyForwardDependenciesBuilder(myProject, scope, myTransitiveBorder);
+      final MyForwardDependenciesBuilder builder = new MyForwardDependenciesBuilder(myProject, scope, myTransitiveBorder);
+      final MyDependenciesBuilder main = myBuilders.get(0);
+      builder.setBoundedMemory(main instanceof MyForwardDependenciesBuilder && ((MyForwardDependenciesBuilder) main).isBoundedMemory());
       String message = CodeInsightBundle.message("package.dependencies.progress.title");
       ProgressManager.getInstance().run(new Task.Backgroundable(myProject, message, true, new PerformAnalysisInBackgroundOption(myProject)) {
         @Override
@@ -639,8 +732,11 @@ public final class FileDependenciesPanel extends JPanel implements Disposable, D
           builder.analyze();
           myBuilders.add(builder);
           myDependencies.putAll(builder.getDependencies());
-          putAllDependencies(builder);
           exclude(myExcluded);
+        }
+
+        @Override
+        public void onSuccess() {
           rebuild();
         }
       });
@@ -731,13 +827,7 @@ public final class FileDependenciesPanel extends JPanel implements Disposable, D
               if (hasDirectDependencies) break;
               for (PsiFile to : searchFor) {
                 if (hasDirectDependencies) break;
-                final List<List<PsiFile>> paths = builder.findPaths(from, to);
-                for (List<PsiFile> path : paths) {
-                  if (path.isEmpty()) {
-                    hasDirectDependencies = true;
-                    break;
-                  }
-                }
+                hasDirectDependencies = builder.getPathFinder().hasDirectDependency(from, to);
               }
             }
           }
@@ -5,8 +5,7 @@ import com.intellij.util.xmlb.annotations.Tag;
 import com.intellij.util.xmlb.annotations.XCollection;
 
 import java.io.Serializable;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.*;
 
 public class GraphConfigState implements Serializable {
     @Tag("greenModules")
@@ -14,6 +13,67 @@ public class GraphConfigState implements Serializable {
     @Property(alwaysWrite = true)
     public Set<String> greenModules = new HashSet<>();
 
-    GraphConfigState() {
+    @Tag("analysisThreads")
+    public int analysisThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+    @Tag("incrementalAnalysis")
+    public boolean incrementalAnalysis = true;
+
+    /**
+     * Dependencies of Java and Kotlin files are taken from their imports, only files with ambiguous imports are resolved.
+     */
+    @Tag("fastMode")
+    public boolean fastMode = false;
+
+    /**
+     * Results of an analysis are kept as file ids rather than PSI files, which are looked up again when they are shown.
+     */
+    @Tag("boundedMemory")
+    public boolean boundedMemory = false;
+
+    /**
+     * Files changed after an analysis are analyzed again in the background and patched into its results.
+     */
+    @Tag("liveUpdates")
+    public boolean liveUpdates = true;
+
+    /**
+     * Files whose path ends with one of these suffixes are left out of the graph.
+     */
+    @Tag("filteredClasses")
+    @XCollection
+    @Property(alwaysWrite = true)
+    public Set<String> filteredClasses = new HashSet<>();
+
+    /**
+     * Files whose name starts with one of these prefixes are left out of the graph, generated DI code by default.
+     */
+    @Tag("filteredClassPrefixes")
+    @XCollection
+    @Property(alwaysWrite = true)
+    public Set<String> filteredClassPrefixes = new LinkedHashSet<>(Arrays.asList("Whetstone", "Dagger"));
+
+    /**
+     * Files whose path matches one of these patterns are left out of the graph. A pattern is a glob, like
+     * {@code **}{@code /generated/**}, or a regular expression prefixed with {@code regex:}.
+     */
+    @Tag("filteredPathPatterns")
+    @XCollection
+    @Property(alwaysWrite = true)
+    public List<String> filteredPathPatterns = new ArrayList<>();
+
+    /**
+     * Files which take longer than this many milliseconds to resolve are added to {@link #filteredClasses} after an
+     * analysis, so later analyses skip them. {@code 0} turns it off.
+     */
+    @Tag("slowFileBudgetMs")
+    public int slowFileBudgetMs = 0;
+
+    @Tag("filteredModules")
+    @XCollection
+    @Property(alwaysWrite = true)
+    public Set<String> filteredModules = new HashSet<>();
+
+    public GraphConfigState() {
     }
 }
@@ -0,0 +1,35 @@
+package com.github.pberdnik.dependenciesanalyzerplugin.storage;
+
+import com.github.pberdnik.dependenciesanalyzerplugin.old.file.CodeFile;
+import com.intellij.util.xmlb.annotations.Attribute;
+import com.intellij.util.xmlb.annotations.Tag;
+import com.intellij.util.xmlb.annotations.XMap;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Pointer to the binary graph file in the project system directory.
+ */
+@Tag("graph")
+public class GraphStorageState implements Serializable {
+    @Attribute("version")
+    public int version = 0;
+
+    @Attribute("file")
+    public String file = "";
+
+    @Attribute("filesCount")
+    public int filesCount = 0;
+
+    /**
+     * Graph written by older versions straight into dependenciesInfo.xml. Moved to the binary file on first load.
+     */
+    @Tag("files")
+    @XMap()
+    public Map<String, CodeFile> codeFiles = new HashMap<>();
+
+    GraphStorageState() {
+    }
+}
@@ -0,0 +1,282 @@
+package com.intellij.packageDependencies;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileWithId;
+import com.intellij.openapi.vfs.newvfs.persistent.PersistentFS;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import it.unimi.dsi.fastutil.ints.AbstractInt2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Dependencies of files kept as file ids instead of {@link PsiFile}s, so holding the dependencies of a large analysis
+ * doesn't keep the syntax trees or stubs of its files in memory. A file costs an int key and an int array.
+ * <p>
+ * {@link #asPsiMap} shows them as the map of PSI files the rest of the dependencies UI works with. PSI files are looked
+ * up when an entry is read and aren't held by the map, so reads need read access. Sets read from it are snapshots and
+ * can't be changed, dependencies are changed through the map's {@code put} or {@link #add}. Files without an id, which
+ * aren't stored in the virtual file system, are left out.
+ */
+public final class FileIdDependencies {
+  private final Int2ObjectOpenHashMap<int[]> myDependencies = new Int2ObjectOpenHashMap<>();
+
+  /**
+   * Adds {@code dependencies} to the dependencies of {@code file}.
+   */
+  public void add(@NotNull VirtualFile file, @NotNull Collection<? extends PsiFile> dependencies) {
+    if (!(file instanceof VirtualFileWithId)) return;
+    final int id = ((VirtualFileWithId)file).getId();
+    final int[] ids = ids(dependencies);
+    synchronized (myDependencies) {
+      final int[] previous = myDependencies.get(id);
+      if (previous == null) {
+        myDependencies.put(id, ids);
+        return;
+      }
+      final IntOpenHashSet merged = new IntOpenHashSet(previous);
+      for (int dependency : ids) {
+        merged.add(dependency);
+      }
+      myDependencies.put(id, merged.toIntArray());
+    }
+  }
+
+  /**
+   * Replaces the dependencies of {@code file}.
+   */
+  public void put(@NotNull VirtualFile file, @NotNull Collection<? extends PsiFile> dependencies) {
+    if (!(file instanceof VirtualFileWithId)) return;
+    final int[] ids = ids(dependencies);
+    synchronized (myDependencies) {
+      myDependencies.put(((VirtualFileWithId)file).getId(), ids);
+    }
+  }
+
+  public void putAll(@NotNull FileIdDependencies other) {
+    final Int2ObjectOpenHashMap<int[]> copy;
+    synchronized (other.myDependencies) {
+      copy = new Int2ObjectOpenHashMap<>(other.myDependencies);
+    }
+    synchronized (myDependencies) {
+      myDependencies.putAll(copy);
+    }
+  }
+
+  public boolean contains(@Nullable VirtualFile file) {
+    if (!(file instanceof VirtualFileWithId)) return false;
+    synchronized (myDependencies) {
+      return myDependencies.containsKey(((VirtualFileWithId)file).getId());
+    }
+  }
+
+  public void remove(@Nullable VirtualFile file) {
+    if (!(file instanceof VirtualFileWithId)) return;
+    synchronized (myDependencies) {
+      myDependencies.remove(((VirtualFileWithId)file).getId());
+    }
+  }
+
+  public int size() {
+    synchronized (myDependencies) {
+      return myDependencies.size();
+    }
+  }
+
+  /**
+   * Files depending on each file, computed on ids without looking up any PSI file.
+   */
+  @NotNull
+  public FileIdDependencies inverted() {
+    final Int2ObjectOpenHashMap<IntArrayList> dependents = new Int2ObjectOpenHashMap<>();
+    synchronized (myDependencies) {
+      for (Int2ObjectMap.Entry<int[]> entry : myDependencies.int2ObjectEntrySet()) {
+        for (int dependency : entry.getValue()) {
+          dependents.computeIfAbsent(dependency, __ -> new IntArrayList(1)).add(entry.getIntKey());
+        }
+      }
+    }
+    final FileIdDependencies inverted = new FileIdDependencies();
+    for (Int2ObjectMap.Entry<IntArrayList> entry : dependents.int2ObjectEntrySet()) {
+      inverted.myDependencies.put(entry.getIntKey(), entry.getValue().toIntArray());
+    }
+    return inverted;
+  }
+
+  /**
+   * Dependencies behind {@code map} if it is a view made by {@link #asPsiMap}.
+   */
+  @Nullable
+  public static FileIdDependencies of(@NotNull Map<PsiFile, ? extends Set<PsiFile>> map) {
+    return map instanceof FileIdDependencies.PsiMap ? ((PsiMap)map).owner() : null;
+  }
+
+  /**
+   * View of these dependencies keyed by PSI file. Changes of the view change these dependencies.
+   */
+  @NotNull
+  public Map<PsiFile, Set<PsiFile>> asPsiMap(@NotNull Project project) {
+    return new PsiMap(PsiManager.getInstance(project));
+  }
+
+  private static int[] ids(@NotNull Collection<? extends PsiFile> files) {
+    final int[] ids = new int[files.size()];
+    int count = 0;
+    for (PsiFile file : files) {
+      final VirtualFile virtualFile = file.getVirtualFile();
+      if (virtualFile instanceof VirtualFileWithId) {
+        ids[count++] = ((VirtualFileWithId)virtualFile).getId();
+      }
+    }
+    return count == ids.length ? ids : Arrays.copyOf(ids, count);
+  }
+
+  @Nullable
+  private static PsiFile findFile(int id, @NotNull PsiManager psiManager) {
+    final VirtualFile file = PersistentFS.getInstance().findFileById(id);
+    return file != null && file.isValid() ? psiManager.findFile(file) : null;
+  }
+
+  @NotNull
+  private static Set<PsiFile> findFiles(int @NotNull [] ids, @NotNull PsiManager psiManager) {
+    final Set<PsiFile> files = new HashSet<>(ids.length);
+    for (int id : ids) {
+      final PsiFile file = findFile(id, psiManager);
+      if (file != null) {
+        files.add(file);
+      }
+    }
+    return Collections.unmodifiableSet(files);
+  }
+
+  private final class PsiMap extends AbstractMap<PsiFile, Set<PsiFile>> {
+    private final PsiManager myPsiManager;
+
+    private PsiMap(@NotNull PsiManager psiManager) {
+      myPsiManager = psiManager;
+    }
+
+    @Override
+    public Set<PsiFile> get(Object key) {
+      final int[] ids = idsOf(key);
+      return ids == null ? null : findFiles(ids, myPsiManager);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return key instanceof PsiFile && contains(((PsiFile)key).getVirtualFile());
+    }
+
+    /**
+     * The computed set would be stored as ids and later changes of it lost, add to dependencies with {@link #put} of a
+     * new set or {@link FileIdDependencies#add} instead.
+     */
+    @Override
+    public Set<PsiFile> computeIfAbsent(PsiFile key, @NotNull Function<? super PsiFile, ? extends Set<PsiFile>> mappingFunction) {
+      throw new UnsupportedOperationException("Dependencies kept as file ids can't be changed through a computed set");
+    }
+
+    @Override
+    public Set<PsiFile> put(PsiFile key, Set<PsiFile> value) {
+      final Set<PsiFile> previous = get(key);
+      FileIdDependencies.this.put(key.getVirtualFile(), value);
+      return previous;
+    }
+
+    @Override
+    public void putAll(@NotNull Map<? extends PsiFile, ? extends Set<PsiFile>> map) {
+      if (map instanceof FileIdDependencies.PsiMap) {
+        FileIdDependencies.this.putAll(((PsiMap)map).owner());
+      }
+      else {
+        super.putAll(map);
+      }
+    }
+
+    @Override
+    public Set<PsiFile> remove(Object key) {
+      final Set<PsiFile> previous = get(key);
+      if (key instanceof PsiFile) {
+        FileIdDependencies.this.remove(((PsiFile)key).getVirtualFile());
+      }
+      return previous;
+    }
+
+    @Override
+    public int size() {
+      return FileIdDependencies.this.size();
+    }
+
+    /**
+     * Entries of the files present when the iteration starts, their PSI files are looked up one entry at a time.
+     */
+    @NotNull
+    @Override
+    public Set<Entry<PsiFile, Set<PsiFile>>> entrySet() {
+      return new AbstractSet<>() {
+        @Override
+        public Iterator<Entry<PsiFile, Set<PsiFile>>> iterator() {
+          final List<Int2ObjectMap.Entry<int[]>> entries;
+          synchronized (myDependencies) {
+            entries = new ArrayList<>(myDependencies.size());
+            for (Int2ObjectMap.Entry<int[]> entry : myDependencies.int2ObjectEntrySet()) {
+              entries.add(new AbstractInt2ObjectMap.BasicEntry<>(entry.getIntKey(), entry.getValue()));
+            }
+          }
+          return new Iterator<>() {
+            private int myIndex;
+            private Entry<PsiFile, Set<PsiFile>> myNext;
+
+            @Override
+            public boolean hasNext() {
+              while (myNext == null && myIndex < entries.size()) {
+                final Int2ObjectMap.Entry<int[]> entry = entries.get(myIndex++);
+                final PsiFile file = findFile(entry.getIntKey(), myPsiManager);
+                if (file != null) {
+                  myNext = new SimpleImmutableEntry<>(file, findFiles(entry.getValue(), myPsiManager));
+                }
+              }
+              return myNext != null;
+            }
+
+            @Override
+            public Entry<PsiFile, Set<PsiFile>> next() {
+              if (!hasNext()) throw new NoSuchElementException();
+              final Entry<PsiFile, Set<PsiFile>> next = myNext;
+              myNext = null;
+              return next;
+            }
+          };
+        }
+
+        @Override
+        public int size() {
+          return PsiMap.this.size();
+        }
+      };
+    }
+
+    @Nullable
+    private int[] idsOf(Object key) {
+      if (!(key instanceof PsiFile)) return null;
+      final VirtualFile file = ((PsiFile)key).getVirtualFile();
+      if (!(file instanceof VirtualFileWithId)) return null;
+      synchronized (myDependencies) {
+        return myDependencies.get(((VirtualFileWithId)file).getId());
+      }
+    }
+
+    @NotNull
+    private FileIdDependencies owner() {
+      return FileIdDependencies.this;
+    }
+  }
+}
@@ -27,6 +27,7 @@ import org.jetbrains.annotations.Nls;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author anna
@@ -34,9 +35,10 @@ import java.util.*;
 public abstract class MyDependenciesBuilder {
   private final Project myProject;
   private final AnalysisScope myScope;
-  private final Map<PsiFile, Set<PsiFile>> myDependencies = new HashMap<>();
+  private final Map<PsiFile, Set<PsiFile>> myDependencies = new ConcurrentHashMap<>();
   protected int myTotalFileCount;
   protected int myFileCount = 0;
+  private MyDependencyPathFinder myPathFinder;
 
   protected MyDependenciesBuilder(@NotNull final Project project, @NotNull final AnalysisScope scope) {
     myProject = project;
@@ -107,31 +109,22 @@ public abstract class MyDependenciesBuilder {
     return result;
   }
 
+  /**
+   * Shortest dependency paths from {@code from} to {@code to}, see {@link MyDependencyPathFinder#findShortestPaths}.
+   */
   public List<List<PsiFile>> findPaths(PsiFile from, PsiFile to) {
-    return findPaths(from, to, new HashSet<>());
+    return getPathFinder().findShortestPaths(from, to);
   }
 
-  private List<List<PsiFile>> findPaths(PsiFile from, PsiFile to, Set<? super PsiFile> processed) {
-    final List<List<PsiFile>> result = new ArrayList<>();
-    final Set<PsiFile> reachable = getDirectDependencies().get(from);
-    if (reachable != null) {
-      if (reachable.contains(to)) {
-        result.add(new ArrayList<>());
-        return result;
-      }
-      if (processed.add(from)) {
-        for (PsiFile file : reachable) {
-          if (!getScope().contains(file)) { //exclude paths through scope
-            final List<List<PsiFile>> paths = findPaths(file, to, processed);
-            for (List<PsiFile> path : paths) {
-              path.add(0, file);
-            }
-            result.addAll(paths);
-          }
-        }
-      }
+  /**
+   * Path queries over the dependencies of this builder, valid once {@link #analyze()} has finished.
+   */
+  @NotNull
+  public synchronized MyDependencyPathFinder getPathFinder() {
+    if (myPathFinder == null) {
+      myPathFinder = new MyDependencyPathFinder(this);
     }
-    return result;
+    return myPathFinder;
   }
 
   @NlsSafe
@@ -0,0 +1,202 @@
+package com.intellij.packageDependencies;
+
+import com.intellij.packageDependencies.actions.MyBackwardDependenciesBuilder;
+import com.intellij.psi.PsiFile;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * Path queries over the direct dependencies of a finished analysis. Files of the analysis scope are never used as
+ * intermediate files of a path, the same as in the original recursive enumeration.
+ * <p>
+ * Shortest paths are searched with distances to the target, which are computed once per target by a breadth-first
+ * search over the inverted dependencies and reused for every source of a from&times;to batch. Before they are computed
+ * for a new target, a bidirectional search checks that the source reaches it at all, so pairs without a path don't walk
+ * everything depending on the target. Path lengths, the number of returned paths and the number of visited files are
+ * capped, so a query on a dense graph stays fast and small.
+ */
+public final class MyDependencyPathFinder {
+  public static final int MAX_PATHS = 20;
+  public static final int MAX_EXTRA_LENGTH = 2;
+  private static final int MAX_LENGTH = 32;
+  private static final int MAX_VISITS = 100_000;
+  private static final int MAX_CACHED_TARGETS = 64;
+
+  private final MyDependenciesBuilder myBuilder;
+  private final Map<PsiFile, Set<PsiFile>> myForward;
+  private Map<PsiFile, Set<PsiFile>> myBackward;
+  private final Map<PsiFile, Object2IntOpenHashMap<PsiFile>> myDistancesToTarget =
+    new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<PsiFile, Object2IntOpenHashMap<PsiFile>> eldest) {
+        return size() > MAX_CACHED_TARGETS;
+      }
+    };
+
+  public MyDependencyPathFinder(@NotNull MyDependenciesBuilder builder) {
+    myBuilder = builder;
+    myForward = builder.getDirectDependencies();
+  }
+
+  public boolean hasDirectDependency(@NotNull PsiFile from, @NotNull PsiFile to) {
+    final Set<PsiFile> dependencies = myForward.get(from);
+    return dependencies != null && dependencies.contains(to);
+  }
+
+  /**
+   * Whether {@code from} depends on {@code to} directly or through other files. Searches from both ends at once,
+   * expanding the smaller frontier, and gives up with {@code false} after {@link #MAX_VISITS} visited dependencies.
+   */
+  public synchronized boolean hasPath(@NotNull PsiFile from, @NotNull PsiFile to) {
+    if (hasDirectDependency(from, to)) return true;
+    final Map<PsiFile, Set<PsiFile>> backward = getBackward();
+    final Set<PsiFile> forwardVisited = new HashSet<>();
+    final Set<PsiFile> backwardVisited = new HashSet<>();
+    List<PsiFile> forwardFrontier = new ArrayList<>();
+    List<PsiFile> backwardFrontier = new ArrayList<>();
+    for (PsiFile file : myForward.getOrDefault(from, Collections.emptySet())) {
+      if (isIntermediate(file) && forwardVisited.add(file)) forwardFrontier.add(file);
+    }
+    for (PsiFile file : backward.getOrDefault(to, Collections.emptySet())) {
+      if (!isIntermediate(file)) continue;
+      if (forwardVisited.contains(file)) return true;
+      if (backwardVisited.add(file)) backwardFrontier.add(file);
+    }
+    int visits = 0;
+    for (int length = 2; length <= MAX_LENGTH && !forwardFrontier.isEmpty() && !backwardFrontier.isEmpty(); length++) {
+      final boolean expandForward = forwardFrontier.size() <= backwardFrontier.size();
+      final Map<PsiFile, Set<PsiFile>> edges = expandForward ? myForward : backward;
+      final Set<PsiFile> visited = expandForward ? forwardVisited : backwardVisited;
+      final Set<PsiFile> otherVisited = expandForward ? backwardVisited : forwardVisited;
+      final List<PsiFile> next = new ArrayList<>();
+      for (PsiFile file : expandForward ? forwardFrontier : backwardFrontier) {
+        for (PsiFile neighbour : edges.getOrDefault(file, Collections.emptySet())) {
+          if (++visits >= MAX_VISITS) return false;
+          if (!isIntermediate(neighbour)) continue;
+          if (otherVisited.contains(neighbour)) return true;
+          if (visited.add(neighbour)) next.add(neighbour);
+        }
+      }
+      if (expandForward) {
+        forwardFrontier = next;
+      } else {
+        backwardFrontier = next;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Up to {@link #MAX_PATHS} shortest paths, at most {@link #MAX_EXTRA_LENGTH} longer than the shortest one, in order of
+   * length. A path is the list of intermediate files between {@code from} and {@code to}. A direct dependency is the
+   * only path returned if there is one, as an empty path, like in the original enumeration.
+   */
+  @NotNull
+  public synchronized List<List<PsiFile>> findShortestPaths(@NotNull PsiFile from, @NotNull PsiFile to) {
+    final List<List<PsiFile>> result = new ArrayList<>();
+    if (hasDirectDependency(from, to)) {
+      result.add(new ArrayList<>());
+      return result;
+    }
+    if (!myDistancesToTarget.containsKey(to) && !hasPath(from, to)) return result;
+    final Object2IntOpenHashMap<PsiFile> distances = getDistancesToTarget(to);
+    int shortest = Integer.MAX_VALUE;
+    for (PsiFile file : myForward.getOrDefault(from, Collections.emptySet())) {
+      final int distance = distances.getInt(file);
+      if (distance >= 0) shortest = Math.min(shortest, distance + 1);
+    }
+    if (shortest == Integer.MAX_VALUE) return result;
+    final int[] visits = {0};
+    final Set<PsiFile> onPath = new HashSet<>();
+    onPath.add(from);
+    final int longest = Math.min(shortest + MAX_EXTRA_LENGTH, MAX_LENGTH);
+    for (int length = shortest; length <= longest && result.size() < MAX_PATHS && visits[0] < MAX_VISITS; length++) {
+      collectPaths(from, to, length, distances, new ArrayDeque<>(), onPath, result, visits);
+    }
+    return result;
+  }
+
+  /**
+   * Collects simple paths from {@code file} with exactly {@code remaining} intermediate files, skipping files which
+   * can't reach the target in time.
+   */
+  private void collectPaths(PsiFile file,
+                            PsiFile to,
+                            int remaining,
+                            Object2IntOpenHashMap<PsiFile> distances,
+                            Deque<PsiFile> path,
+                            Set<PsiFile> onPath,
+                            List<List<PsiFile>> result,
+                            int[] visits) {
+    final Set<PsiFile> dependencies = myForward.get(file);
+    if (dependencies == null) return;
+    if (remaining == 0) {
+      if (dependencies.contains(to)) result.add(new ArrayList<>(path));
+      return;
+    }
+    for (PsiFile dependency : dependencies) {
+      if (result.size() >= MAX_PATHS || ++visits[0] >= MAX_VISITS) return;
+      if (dependency == to || onPath.contains(dependency)) continue;
+      final int distance = distances.getInt(dependency);
+      if (distance < 0 || distance > remaining - 1) continue;
+      onPath.add(dependency);
+      path.addLast(dependency);
+      collectPaths(dependency, to, remaining - 1, distances, path, onPath, result, visits);
+      path.removeLast();
+      onPath.remove(dependency);
+    }
+  }
+
+  /**
+   * Number of intermediate files on the shortest path from each file to {@code to}, 0 for files depending on it
+   * directly. Files which can't reach {@code to} are absent, as are files not reached before {@link #MAX_VISITS}
+   * dependents are visited.
+   */
+  private Object2IntOpenHashMap<PsiFile> getDistancesToTarget(PsiFile to) {
+    Object2IntOpenHashMap<PsiFile> distances = myDistancesToTarget.get(to);
+    if (distances != null) return distances;
+    distances = new Object2IntOpenHashMap<>();
+    distances.defaultReturnValue(-1);
+    final Map<PsiFile, Set<PsiFile>> backward = getBackward();
+    List<PsiFile> frontier = new ArrayList<>();
+    for (PsiFile file : backward.getOrDefault(to, Collections.emptySet())) {
+      if (isIntermediate(file)) {
+        distances.put(file, 0);
+        frontier.add(file);
+      }
+    }
+    int visits = 0;
+    for (int distance = 1; !frontier.isEmpty() && distance <= MAX_LENGTH && visits < MAX_VISITS; distance++) {
+      final List<PsiFile> next = new ArrayList<>();
+      for (PsiFile file : frontier) {
+        for (PsiFile dependent : backward.getOrDefault(file, Collections.emptySet())) {
+          if (++visits > MAX_VISITS) break;
+          if (isIntermediate(dependent) && !distances.containsKey(dependent)) {
+            distances.put(dependent, distance);
+            next.add(dependent);
+          }
+        }
+      }
+      frontier = next;
+    }
+    myDistancesToTarget.put(to, distances);
+    return distances;
+  }
+
+  private boolean isIntermediate(PsiFile file) {
+    return !myBuilder.getScope().contains(file);
+  }
+
+  /**
+   * Dependencies kept as file ids are inverted on ids, without looking up PSI files of the whole analysis.
+   */
+  private Map<PsiFile, Set<PsiFile>> getBackward() {
+    if (myBackward == null) {
+      final FileIdDependencies ids = FileIdDependencies.of(myForward);
+      myBackward = ids != null ? ids.inverted().asPsiMap(myBuilder.getProject()) : MyBackwardDependenciesBuilder.invert(myForward);
+    }
+    return myBackward;
+  }
+}
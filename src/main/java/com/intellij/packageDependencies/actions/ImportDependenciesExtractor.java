@@ -0,0 +1,310 @@
+package com.intellij.packageDependencies.actions;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.PackageIndex;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds dependencies of Java and Kotlin files from their package and import statements and the names used in their
+ * text, without building syntax trees or resolving references. An import of a class depends on the file named after
+ * it, and a name used in the file depends on the file of the same name in the same package. Files are looked up
+ * through the package index of the project sources.
+ * <p>
+ * A file is left to full resolution when this can't tell its dependencies: files of other languages, files with
+ * wildcard imports, files whose header can't be parsed line by line, like several imports or an import and a comment on
+ * one line, and files importing something of a project package which isn't a file of that package, like a
+ * Kotlin top-level function or a nested class, or which is a file of several source roots.
+ * <p>
+ * Names in comments and in the text of string and char literals are skipped, names in expressions of Kotlin string
+ * templates are not. Dependencies on a class used by its fully qualified name or through a Kotlin top-level declaration
+ * of the same package are missed.
+ */
+final class ImportDependenciesExtractor {
+  private static final Set<String> EXTENSIONS = Set.of("java", "kt");
+  private static final Pattern PACKAGE = Pattern.compile("package\\s+([\\w.]+)\\s*;?");
+  private static final Pattern IMPORT = Pattern.compile("import\\s+(?:static\\s+)?([\\w.]+?)(\\.\\*)?(?:\\s+as\\s+\\w+)?\\s*;?");
+  private static final Pattern HEADER_KEYWORD = Pattern.compile("(?:package|import)\\b");
+
+  private final PackageIndex myPackageIndex;
+  private final ProjectFileIndex myFileIndex;
+  private final PsiManager myPsiManager;
+  /**
+   * Source files of a package by name without extension.
+   */
+  private final Map<String, Map<String, List<VirtualFile>>> myPackageFiles = new ConcurrentHashMap<>();
+
+  ImportDependenciesExtractor(@NotNull Project project) {
+    myPackageIndex = PackageIndex.getInstance(project);
+    myFileIndex = ProjectFileIndex.getInstance(project);
+    myPsiManager = PsiManager.getInstance(project);
+  }
+
+  /**
+   * Dependencies of {@code file}, or {@code null} if they have to be found by resolving its references.
+   */
+  @Nullable
+  Set<PsiFile> extract(@NotNull PsiFile file) {
+    final VirtualFile virtualFile = file.getVirtualFile();
+    if (virtualFile == null || !EXTENSIONS.contains(virtualFile.getExtension())) return null;
+    final CharSequence text = file.getViewProvider().getContents();
+
+    String packageName = "";
+    final List<String> imports = new ArrayList<>();
+    boolean inComment = false;
+    int lineStart = 0;
+    while (lineStart < text.length()) {
+      int lineEnd = indexOf(text, '\n', lineStart);
+      final String line = text.subSequence(lineStart, lineEnd).toString().trim();
+      if (inComment || line.startsWith("/*")) {
+        final int commentEnd = line.indexOf("*/", inComment ? 0 : 2);
+        inComment = commentEnd < 0;
+        // a statement sharing its line with a comment isn't parsed, it may be an import
+        if (!inComment && !line.substring(commentEnd + 2).isBlank()) return null;
+      }
+      else if (!line.isEmpty() && !line.startsWith("//") && !line.startsWith("@file:")) {
+        final Matcher packageMatcher = PACKAGE.matcher(line);
+        final Matcher importMatcher = IMPORT.matcher(line);
+        if (packageMatcher.matches()) {
+          packageName = packageMatcher.group(1);
+        }
+        else if (importMatcher.matches()) {
+          if (importMatcher.group(2) != null) return null;
+          imports.add(importMatcher.group(1));
+        }
+        else if (HEADER_KEYWORD.matcher(line).lookingAt()) {
+          // several statements or a trailing comment on the line, its imports can't be told apart reliably
+          return null;
+        }
+        else {
+          break;
+        }
+      }
+      lineStart = lineEnd + 1;
+    }
+
+    final Set<VirtualFile> dependencies = new HashSet<>();
+    for (String qualifiedName : imports) {
+      if (!addImported(qualifiedName, dependencies)) return null;
+    }
+    final Set<String> names = new IdentifierScanner(text, "kt".equals(virtualFile.getExtension())).scan(lineStart);
+    for (Map.Entry<String, List<VirtualFile>> entry : packageFiles(packageName).entrySet()) {
+      if (!names.contains(entry.getKey())) continue;
+      if (entry.getValue().size() > 1) return null;
+      dependencies.add(entry.getValue().get(0));
+    }
+    dependencies.remove(virtualFile);
+
+    final Set<PsiFile> found = new HashSet<>();
+    for (VirtualFile dependency : dependencies) {
+      final PsiFile dependencyFile = myPsiManager.findFile(dependency);
+      if (dependencyFile != null) {
+        found.add(dependencyFile);
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Adds the file of an imported class, trying nested classes and static members from the longest package name.
+   *
+   * @return false if the import names something of a project package which isn't exactly one file
+   */
+  private boolean addImported(@NotNull String qualifiedName, @NotNull Set<VirtualFile> dependencies) {
+    final String[] segments = qualifiedName.split("\\.");
+    for (int i = segments.length - 1; i > 0; i--) {
+      final String packageName = String.join(".", Arrays.asList(segments).subList(0, i));
+      final List<VirtualFile> files = packageFiles(packageName).get(segments[i]);
+      if (files == null) continue;
+      if (files.size() > 1) return false;
+      dependencies.add(files.get(0));
+      return true;
+    }
+    // an import of a library class, or of a declaration of a project package which isn't named after its file
+    final int lastDot = qualifiedName.lastIndexOf('.');
+    return lastDot < 0 || packageFiles(qualifiedName.substring(0, lastDot)).isEmpty();
+  }
+
+  @NotNull
+  private Map<String, List<VirtualFile>> packageFiles(@NotNull String packageName) {
+    return myPackageFiles.computeIfAbsent(packageName, name -> {
+      final Map<String, List<VirtualFile>> files = new HashMap<>();
+      for (VirtualFile directory : myPackageIndex.getDirectoriesByPackageName(name, false)) {
+        if (!myFileIndex.isInSourceContent(directory)) continue;
+        for (VirtualFile child : directory.getChildren()) {
+          if (!child.isDirectory() && EXTENSIONS.contains(child.getExtension())) {
+            files.computeIfAbsent(child.getNameWithoutExtension(), __ -> new ArrayList<>(1)).add(child);
+          }
+        }
+      }
+      return files;
+    });
+  }
+
+  private static int indexOf(@NotNull CharSequence text, char c, int from) {
+    for (int i = from; i < text.length(); i++) {
+      if (text.charAt(i) == c) return i;
+    }
+    return text.length();
+  }
+
+  /**
+   * Collects names used in code, skipping comments and literals the way the Java or Kotlin lexer does. Kotlin block
+   * comments nest, and its strings may contain templates whose names are collected as well. An unterminated literal
+   * ends at the end of its line, an unterminated comment or raw string at the end of the text.
+   */
+  private static final class IdentifierScanner {
+    private final CharSequence myText;
+    private final boolean myKotlin;
+    private final Set<String> myIdentifiers = new HashSet<>();
+
+    IdentifierScanner(@NotNull CharSequence text, boolean kotlin) {
+      myText = text;
+      myKotlin = kotlin;
+    }
+
+    @NotNull
+    Set<String> scan(int from) {
+      code(from, false);
+      return myIdentifiers;
+    }
+
+    /**
+     * Scans code up to the end of the text, or up to the brace closing a template expression if {@code inTemplate}.
+     *
+     * @return index after the scanned code
+     */
+    private int code(int i, boolean inTemplate) {
+      int braces = 0;
+      while (i < myText.length()) {
+        final char c = myText.charAt(i);
+        if (startsWith(i, "//")) {
+          i = indexOf(myText, '\n', i);
+        }
+        else if (startsWith(i, "/*")) {
+          i = blockComment(i);
+        }
+        else if (c == '"') {
+          i = startsWith(i, "\"\"\"") ? textBlock(i + 3) : string(i + 1);
+        }
+        else if (c == '\'') {
+          i = charLiteral(i + 1);
+        }
+        else if (Character.isJavaIdentifierStart(c)) {
+          i = identifier(i);
+        }
+        else {
+          if (inTemplate && c == '{') {
+            braces++;
+          }
+          else if (inTemplate && c == '}' && braces-- == 0) {
+            return i + 1;
+          }
+          i++;
+        }
+      }
+      return i;
+    }
+
+    private int blockComment(int i) {
+      int depth = 0;
+      while (i < myText.length()) {
+        if (startsWith(i, "/*") && (myKotlin || depth == 0)) {
+          depth++;
+          i += 2;
+        }
+        else if (startsWith(i, "*/")) {
+          i += 2;
+          if (--depth == 0) return i;
+        }
+        else {
+          i++;
+        }
+      }
+      return i;
+    }
+
+    private int string(int i) {
+      while (i < myText.length()) {
+        final char c = myText.charAt(i);
+        if (c == '"') return i + 1;
+        if (c == '\n') return i;
+        if (c == '\\') {
+          i += 2;
+        }
+        else if (c == '$' && myKotlin) {
+          i = template(i + 1);
+        }
+        else {
+          i++;
+        }
+      }
+      return i;
+    }
+
+    /**
+     * Skips a Java text block or a Kotlin raw string, which has templates but no escapes.
+     */
+    private int textBlock(int i) {
+      while (i < myText.length()) {
+        final char c = myText.charAt(i);
+        if (startsWith(i, "\"\"\"")) {
+          i += 3;
+          // a raw string may end with quotes, only the last three close it
+          while (myKotlin && i < myText.length() && myText.charAt(i) == '"') i++;
+          return i;
+        }
+        if (c == '\\' && !myKotlin) {
+          i += 2;
+        }
+        else if (c == '$' && myKotlin) {
+          i = template(i + 1);
+        }
+        else {
+          i++;
+        }
+      }
+      return i;
+    }
+
+    private int template(int i) {
+      if (i >= myText.length()) return i;
+      if (myText.charAt(i) == '{') return code(i + 1, true);
+      return Character.isJavaIdentifierStart(myText.charAt(i)) ? identifier(i) : i;
+    }
+
+    private int charLiteral(int i) {
+      while (i < myText.length()) {
+        final char c = myText.charAt(i);
+        if (c == '\'') return i + 1;
+        if (c == '\n') return i;
+        i += c == '\\' ? 2 : 1;
+      }
+      return i;
+    }
+
+    private int identifier(int i) {
+      final int start = i;
+      while (i < myText.length() && Character.isJavaIdentifierPart(myText.charAt(i))) i++;
+      myIdentifiers.add(myText.subSequence(start, i).toString());
+      return i;
+    }
+
+    private boolean startsWith(int i, @NotNull String prefix) {
+      if (i + prefix.length() > myText.length()) return false;
+      for (int j = 0; j < prefix.length(); j++) {
+        if (myText.charAt(i + j) != prefix.charAt(j)) return false;
+      }
+      return true;
+    }
+  }
+}
@@ -29,11 +29,13 @@ import com.intellij.packageDependencies.MyDependenciesBuilder;
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiFile;
 import com.intellij.psi.PsiManager;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class MyBackwardDependenciesBuilder extends MyDependenciesBuilder {
   private final AnalysisScope myForwardScope;
@@ -79,6 +81,7 @@ public class MyBackwardDependenciesBuilder extends MyDependenciesBuilder {
     builder.analyze();
 
     subtractScope(builder, getScope());
+    final Map<PsiFile, Set<PsiFile>> backwardDependencies = invert(builder.getDependencies());
     final PsiManager psiManager = PsiManager.getInstance(getProject());
     psiManager.startBatchFilesProcessingMode();
     try {
@@ -106,16 +109,9 @@ public class MyBackwardDependenciesBuilder extends MyDependenciesBuilder {
             if (navigationElement instanceof PsiFile) {
               file = (PsiFile)navigationElement;
             }
-            final Map<PsiFile, Set<PsiFile>> dependencies = builder.getDependencies();
-            for (final PsiFile psiFile : dependencies.keySet()) {
-              if (dependencies.get(psiFile).contains(file)) {
-                Set<PsiFile> fileDeps = getDependencies().get(file);
-                if (fileDeps == null) {
-                  fileDeps = new HashSet<>();
-                  getDependencies().put(file, fileDeps);
-                }
-                fileDeps.add(psiFile);
-              }
+            final Set<PsiFile> dependents = backwardDependencies.get(file);
+            if (dependents != null) {
+              getDependencies().computeIfAbsent(file, __ -> new HashSet<>()).addAll(dependents);
             }
             psiManager.dropResolveCaches();
           }
@@ -128,6 +124,21 @@ public class MyBackwardDependenciesBuilder extends MyDependenciesBuilder {
     }
   }
 
+  /**
+   * Turns forward dependencies into a map from each file to the files depending on it, so that backward dependencies
+   * of a file are a single lookup instead of a scan over all forward dependencies.
+   */
+  @NotNull
+  public static <T> Map<T, Set<T>> invert(@NotNull Map<T, ? extends Set<T>> dependencies) {
+    final Map<T, Set<T>> result = new ConcurrentHashMap<>();
+    dependencies.entrySet().parallelStream().forEach(entry -> {
+      for (T dependency : entry.getValue()) {
+        result.computeIfAbsent(dependency, __ -> ConcurrentHashMap.newKeySet()).add(entry.getKey());
+      }
+    });
+    return result;
+  }
+
   private static void subtractScope(final MyDependenciesBuilder builders, final AnalysisScope scope) {
     final Map<PsiFile, Set<PsiFile>> dependencies = builders.getDependencies();
 
@@ -2,34 +2,64 @@
 
 package com.intellij.packageDependencies.actions;
 
+import com.github.pberdnik.dependenciesanalyzerplugin.storage.AnalysisMetrics;
 import com.intellij.analysis.AnalysisBundle;
 import com.intellij.analysis.AnalysisScope;
 import com.intellij.lang.injection.InjectedLanguageManager;
+import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.util.ProgressIndicatorUtils;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.roots.ProjectFileIndex;
 import com.intellij.openapi.roots.ProjectRootManager;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.packageDependencies.DependenciesBuilder;
+import com.intellij.packageDependencies.FileIdDependencies;
 import com.intellij.packageDependencies.MyDependenciesBuilder;
 import com.intellij.psi.*;
 import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 public class MyForwardDependenciesBuilder extends MyDependenciesBuilder {
-  private final Map<PsiFile, Set<PsiFile>> myDirectDependencies = new HashMap<>();
+  private static final int BATCH_SIZE = 64;
+
+  private final Map<PsiFile, Set<PsiFile>> myDirectDependencies = new ConcurrentHashMap<>();
   private final int myTransitive;
   @Nullable
   private final GlobalSearchScope myTargetScope;
-  private final Set<VirtualFile> myStarted = new HashSet<>();
+  private final Set<VirtualFile> myStarted = ConcurrentHashMap.newKeySet();
+  private int myParallelism = 1;
+  private boolean myDropResolveCaches = true;
+  @Nullable
+  private DependenciesCache myCache;
+  @Nullable
+  private DependenciesListener myListener;
+  @Nullable
+  private AnalysisMetrics myMetrics;
+  @Nullable
+  private Predicate<PsiFile> myFileFilter;
+  @Nullable
+  private ImportDependenciesExtractor myImportExtractor;
+  @Nullable
+  private FileIdDependencies myDependencyIds;
+  @Nullable
+  private FileIdDependencies myDirectDependencyIds;
+  @Nullable
+  private Map<PsiFile, Set<PsiFile>> myBoundedDependencies;
+  @Nullable
+  private Map<PsiFile, Set<PsiFile>> myBoundedDirectDependencies;
 
   public MyForwardDependenciesBuilder(@NotNull Project project, @NotNull AnalysisScope scope) {
     super(project, scope);
@@ -67,27 +97,184 @@ public class MyForwardDependenciesBuilder extends MyDependenciesBuilder {
     return false;
   }
 
+  /**
+   * Sets the number of threads visiting files of the scope. With {@code 1} (the default) files are visited one by one
+   * on the calling thread, otherwise the scope is split into batches which are resolved concurrently.
+   */
+  public void setParallelism(int parallelism) {
+    myParallelism = Math.max(1, parallelism);
+  }
+
+  public int getParallelism() {
+    return myParallelism;
+  }
+
+  /**
+   * Sets the source of dependencies computed by a previous analysis. Files for which the cache has an up-to-date answer
+   * are not resolved again.
+   */
+  public void setDependenciesCache(@Nullable DependenciesCache cache) {
+    myCache = cache;
+  }
+
+  public void setDependenciesListener(@Nullable DependenciesListener listener) {
+    myListener = listener;
+  }
+
+  /**
+   * Sets the metrics which record visitation, resolution and resolve cache drop times and the resolution time of every
+   * analyzed file.
+   */
+  public void setMetrics(@Nullable AnalysisMetrics metrics) {
+    myMetrics = metrics;
+  }
+
+  /**
+   * Turns fast mode on or off. In fast mode dependencies of Java and Kotlin files are taken from their imports and the
+   * names they use, and only files whose imports can't be told apart this way are resolved.
+   */
+  public void setFastMode(boolean fastMode) {
+    myImportExtractor = fastMode ? new ImportDependenciesExtractor(getProject()) : null;
+  }
+
+  /**
+   * Turns dropping of resolve caches after each resolved file, or after each round of batches, on or off. They are
+   * dropped by default so that caches of a large scope don't pile up, an analysis of a few files keeps them warm
+   * instead.
+   */
+  public void setDropResolveCaches(boolean dropResolveCaches) {
+    myDropResolveCaches = dropResolveCaches;
+  }
+
+  /**
+   * Sets the filter of scope files to resolve. Files it rejects are skipped, as if they weren't in the scope.
+   */
+  public void setFileFilter(@Nullable Predicate<PsiFile> filter) {
+    myFileFilter = filter;
+  }
+
+  /**
+   * Turns bounded memory mode on or off. In bounded memory mode the dependencies of every file are kept as file ids as
+   * soon as the file is resolved, so the analysis doesn't hold PSI files of the whole scope until it ends, and
+   * {@link #getDependencies()} and {@link #getDirectDependencies()} look PSI files up when they are read, see
+   * {@link FileIdDependencies}. Must be set before {@link #analyze()}.
+   */
+  public void setBoundedMemory(boolean boundedMemory) {
+    if (!boundedMemory) {
+      myDependencyIds = myDirectDependencyIds = null;
+      myBoundedDependencies = myBoundedDirectDependencies = null;
+      return;
+    }
+    myDependencyIds = new FileIdDependencies();
+    myDirectDependencyIds = isTransitive() ? new FileIdDependencies() : myDependencyIds;
+    myBoundedDependencies = myDependencyIds.asPsiMap(getProject());
+    myBoundedDirectDependencies = isTransitive() ? myDirectDependencyIds.asPsiMap(getProject()) : myBoundedDependencies;
+  }
+
+  public boolean isBoundedMemory() {
+    return myDependencyIds != null;
+  }
+
   @Override
   public void analyze() {
     final PsiManager psiManager = PsiManager.getInstance(getProject());
     psiManager.startBatchFilesProcessingMode();
     final ProjectFileIndex fileIndex = ProjectRootManager.getInstance(getProject()).getFileIndex();
+    final AnalysisMetrics.Measurement visitation = myMetrics != null ? myMetrics.start() : null;
     try {
-      getScope().acceptIdempotentVisitor(new PsiRecursiveElementVisitor() {
-        @Override
-        public void visitFile(@NotNull final PsiFile file) {
-          visit(file, fileIndex, psiManager);
-        }
-      });
+      if (isConcurrent()) {
+        analyzeConcurrently(fileIndex, psiManager);
+      }
+      else {
+        getScope().acceptIdempotentVisitor(new PsiRecursiveElementVisitor() {
+          @Override
+          public void visitFile(@NotNull final PsiFile file) {
+            visit(file, fileIndex, psiManager, Runnable::run);
+          }
+        });
+      }
     }
     finally {
       psiManager.finishBatchFilesProcessingMode();
+      if (visitation != null) {
+        visitation.stop(AnalysisMetrics.VISITATION);
+      }
     }
   }
 
-  private void visit(@NotNull PsiFile file, @NotNull ProjectFileIndex fileIndex, @NotNull PsiManager psiManager) {
+  private void analyzeConcurrently(@NotNull ProjectFileIndex fileIndex, @NotNull PsiManager psiManager) {
+    final ProgressIndicator indicator = ProgressManager.getInstance().getProgressIndicator();
+    final List<VirtualFile> files = new ArrayList<>();
+    getScope().accept(virtualFile -> {
+      files.add(virtualFile);
+      return true;
+    });
+
+    final ExecutorService executor = AppExecutorUtil.createBoundedApplicationPoolExecutor("Dependencies Analyzer", myParallelism);
+    final List<Future<?>> batches = new ArrayList<>();
+    final AtomicInteger finishedBatches = new AtomicInteger();
+    try {
+      for (int from = 0; from < files.size(); from += BATCH_SIZE) {
+        final List<VirtualFile> batch = files.subList(from, Math.min(from + BATCH_SIZE, files.size()));
+        batches.add(executor.submit(() -> ProgressManager.getInstance().executeProcessUnderProgress(
+          () -> visitBatch(batch, fileIndex, psiManager, finishedBatches), indicator)));
+      }
+      for (Future<?> batch : batches) {
+        ProgressIndicatorUtils.awaitWithCheckCanceled(batch);
+      }
+    }
+    finally {
+      for (Future<?> batch : batches) {
+        batch.cancel(false);
+      }
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Visits each file in a read action which is restarted after write actions, so only the dependencies are collected in
+   * it. Reporting the file to the listener and the metrics is done once the read action finished.
+   */
+  private void visitBatch(@NotNull List<VirtualFile> batch, @NotNull ProjectFileIndex fileIndex, @NotNull PsiManager psiManager,
+                          @NotNull AtomicInteger finishedBatches) {
+    for (VirtualFile virtualFile : batch) {
+      ProgressManager.checkCanceled();
+      final List<Runnable> reports = ReadAction.nonBlocking(() -> {
+        final List<Runnable> fileReports = new ArrayList<>(1);
+        final PsiFile file = psiManager.findFile(virtualFile);
+        if (file != null) {
+          visit(file, fileIndex, psiManager, fileReports::add);
+        }
+        return fileReports;
+      }).executeSynchronously();
+      if (!reports.isEmpty()) {
+        ReadAction.run(() -> reports.forEach(Runnable::run));
+      }
+    }
+    // resolve caches are shared by all workers and dropping them throws away the caches of the other workers as well,
+    // so they are dropped once per batch of every worker together instead of after each batch
+    if (finishedBatches.incrementAndGet() % myParallelism == 0) {
+      dropResolveCaches(psiManager);
+    }
+  }
+
+  private void dropResolveCaches(@NotNull PsiManager psiManager) {
+    if (!myDropResolveCaches) return;
+    final AnalysisMetrics.Measurement measurement = myMetrics != null ? myMetrics.start() : null;
+    psiManager.dropResolveCaches();
+    if (measurement != null) {
+      measurement.stop(AnalysisMetrics.DROP_RESOLVE_CACHES);
+    }
+  }
+
+  /**
+   * @param reports receives the reporting of {@code file} to the listener and the metrics, to be run exactly once
+   */
+  private void visit(@NotNull PsiFile file, @NotNull ProjectFileIndex fileIndex, @NotNull PsiManager psiManager,
+                     @NotNull Consumer<Runnable> reports) {
     final FileViewProvider viewProvider = file.getViewProvider();
     if (viewProvider.getBaseLanguage() != file.getLanguage()) return;
+    if (myFileFilter != null && !myFileFilter.test(file)) return;
 
     ProgressIndicator indicator = ProgressManager.getInstance().getProgressIndicator();
     final VirtualFile virtualFile = file.getVirtualFile();
@@ -101,7 +288,7 @@ public class MyForwardDependenciesBuilder extends MyDependenciesBuilder {
         indicator.setText2(getRelativeToProjectPath(virtualFile));
       }
       if ( myTotalFileCount > 0 && myStarted.add(virtualFile)) {
-        indicator.setFraction(((double)++ myFileCount) / myTotalFileCount);
+        indicator.setFraction(((double)nextFileCount()) / myTotalFileCount);
       }
     }
 
@@ -126,29 +313,55 @@ public class MyForwardDependenciesBuilder extends MyDependenciesBuilder {
         }
         if (processed.add(psiFile)) {
           Set<PsiFile> found = new HashSet<>();
-          analyzeFileDependencies(psiFile, (place, dependency) -> {
-            PsiFile dependencyFile = dependency.getContainingFile();
-            if (dependencyFile != null) {
-              if (viewProvider == dependencyFile.getViewProvider()) return;
-              if (dependencyFile.isPhysical() || isJavaHasKotlin(psiFile, dependencyFile)) {
-                final VirtualFile depFile = dependencyFile.getVirtualFile();
-                if (depFile != null
-                    && (fileIndex.isInContent(depFile) || fileIndex.isInLibrary(depFile))
-                    && (myTargetScope == null || myTargetScope.contains(depFile))) {
-                  final PsiElement navigationElement = dependencyFile.getNavigationElement();
-                  found.add(navigationElement instanceof PsiFile ? (PsiFile)navigationElement : dependencyFile);
+          long resolveNanos = 0;
+          final int[] references = new int[1];
+          if (!collectCachedDependencies(vFile, psiManager, found) && !collectImportDependencies(psiFile, found)) {
+            final AnalysisMetrics.Measurement resolution = myMetrics != null ? myMetrics.start() : null;
+            analyzeFileDependencies(psiFile, (place, dependency) -> {
+              references[0]++;
+              PsiFile dependencyFile = dependency.getContainingFile();
+              if (dependencyFile != null) {
+                if (viewProvider == dependencyFile.getViewProvider()) return;
+                if (dependencyFile.isPhysical() || isJavaHasKotlin(psiFile, dependencyFile)) {
+                  final VirtualFile depFile = dependencyFile.getVirtualFile();
+                  if (depFile != null
+                      && (fileIndex.isInContent(depFile) || fileIndex.isInLibrary(depFile))
+                      && (myTargetScope == null || myTargetScope.contains(depFile))) {
+                    final PsiElement navigationElement = dependencyFile.getNavigationElement();
+                    found.add(navigationElement instanceof PsiFile ? (PsiFile)navigationElement : dependencyFile);
+                  }
                 }
               }
+            });
+            if (resolution != null) {
+              resolveNanos = resolution.stop(AnalysisMetrics.RESOLUTION);
             }
-          });
-          Set<PsiFile> deps = getDependencies().computeIfAbsent(file, __ -> new HashSet<>());
-          deps.addAll(found);
+          }
+          if (myDependencyIds != null && myDirectDependencyIds != null) {
+            final VirtualFile scopeFile = file.getVirtualFile();
+            if (scopeFile != null && vFile != null) {
+              myDependencyIds.add(scopeFile, found);
+              if (myDirectDependencyIds != myDependencyIds) {
+                myDirectDependencyIds.put(vFile, found);
+              }
+            }
+          }
+          else {
+            Set<PsiFile> deps = getDependencies().computeIfAbsent(file, __ -> new HashSet<>());
+            deps.addAll(found);
 
-          getDirectDependencies().put(psiFile, new HashSet<>(found));
+            getDirectDependencies().put(psiFile, new HashSet<>(found));
+          }
+          if (psiFile == file) {
+            final long fileResolveNanos = resolveNanos;
+            reports.accept(() -> fileAnalyzed(file, vFile, found, references[0], fileResolveNanos));
+          }
 
           collectedDeps.addAll(found);
 
-          psiManager.dropResolveCaches();
+          if (!isConcurrent()) {
+            dropResolveCaches(psiManager);
+          }
           InjectedLanguageManager.getInstance(file.getProject()).dropFileCaches(psiFile);
         }
       }
@@ -157,6 +370,54 @@ public class MyForwardDependenciesBuilder extends MyDependenciesBuilder {
     while (isTransitive() && !collectedDeps.isEmpty());
   }
 
+  private void fileAnalyzed(@NotNull PsiFile file, @Nullable VirtualFile vFile, @NotNull Set<PsiFile> found, int references,
+                            long resolveNanos) {
+    // a file deleted while it was analyzed isn't reported
+    if (!file.isValid()) return;
+    if (myListener != null) {
+      myListener.dependenciesFound(file, found);
+    }
+    if (myMetrics != null) {
+      myMetrics.fileAnalyzed(vFile != null ? vFile.getPath() : file.getName(), found.size(), references, resolveNanos);
+    }
+  }
+
+  private boolean collectCachedDependencies(@Nullable VirtualFile file, @NotNull PsiManager psiManager, @NotNull Set<? super PsiFile> found) {
+    if (myCache == null || file == null) return false;
+    final Collection<VirtualFile> dependencies = myCache.getDependencies(file);
+    if (dependencies == null) return false;
+    for (VirtualFile dependency : dependencies) {
+      final PsiFile dependencyFile = dependency.isValid() ? psiManager.findFile(dependency) : null;
+      if (dependencyFile == null) {
+        found.clear();
+        return false;
+      }
+      found.add(dependencyFile);
+    }
+    return true;
+  }
+
+  /**
+   * Dependencies from imports in fast mode, see {@link ImportDependenciesExtractor}.
+   *
+   * @return false if the file has to be resolved
+   */
+  private boolean collectImportDependencies(@NotNull PsiFile file, @NotNull Set<? super PsiFile> found) {
+    if (myImportExtractor == null) return false;
+    final AnalysisMetrics.Measurement extraction = myMetrics != null ? myMetrics.start() : null;
+    final Set<PsiFile> dependencies = myImportExtractor.extract(file);
+    if (extraction != null) {
+      extraction.stop(AnalysisMetrics.IMPORT_EXTRACTION);
+    }
+    if (dependencies == null) return false;
+    for (PsiFile dependency : dependencies) {
+      if (myTargetScope == null || myTargetScope.contains(dependency.getVirtualFile())) {
+        found.add(dependency);
+      }
+    }
+    return true;
+  }
+
   /**
    * For some reason during analysis Java class, dependencyFile.isPhysical() for Kotlin class returns false
    * and hence dependency is wrongly skipped. This check prevents such scenario
@@ -166,10 +427,24 @@ public class MyForwardDependenciesBuilder extends MyDependenciesBuilder {
             "kt".equals(dependencyFile.getFileType().getDefaultExtension());
   }
 
+  @NotNull
+  @Override
+  public Map<PsiFile, Set<PsiFile>> getDependencies() {
+    return myBoundedDependencies != null ? myBoundedDependencies : super.getDependencies();
+  }
+
   @NotNull
   @Override
   public Map<PsiFile, Set<PsiFile>> getDirectDependencies() {
-    return myDirectDependencies;
+    return myBoundedDirectDependencies != null ? myBoundedDirectDependencies : myDirectDependencies;
+  }
+
+  private synchronized int nextFileCount() {
+    return ++myFileCount;
+  }
+
+  private boolean isConcurrent() {
+    return myParallelism > 1;
   }
 
   private boolean isTransitive() {
@@ -179,4 +454,22 @@ public class MyForwardDependenciesBuilder extends MyDependenciesBuilder {
   public int getTransitiveBorder() {
     return myTransitive;
   }
+
+  /**
+   * Receives dependencies of every analyzed scope file as soon as they are found, possibly from several threads.
+   */
+  public interface DependenciesListener {
+    void dependenciesFound(@NotNull PsiFile file, @NotNull Set<PsiFile> dependencies);
+  }
+
+  /**
+   * Dependencies of files which are known to be unchanged since a previous analysis.
+   */
+  public interface DependenciesCache {
+    /**
+     * @return dependencies of {@code file} found by a previous analysis or {@code null} if the file has to be analyzed again
+     */
+    @Nullable
+    Collection<VirtualFile> getDependencies(@NotNull VirtualFile file);
+  }
 }
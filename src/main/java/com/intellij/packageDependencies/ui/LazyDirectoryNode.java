@@ -0,0 +1,165 @@
+package com.intellij.packageDependencies.ui;
+
+import com.intellij.icons.AllIcons;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.swing.*;
+import javax.swing.tree.TreeNode;
+import java.util.*;
+
+/**
+ * Directory of a long dependency list whose children are created only when they are first asked for, usually when the
+ * directory is expanded. Until then the directory is just an {@link Entry} of the directory index, so a list of tens of
+ * thousands of files costs a few objects per directory and nothing per file. Children are sorted when they are created,
+ * directories first, and chains of directories without files are shown as one node.
+ */
+public final class LazyDirectoryNode extends PackageDependenciesNode {
+    private final Project myProject;
+    private final Entry myEntry;
+    private final String myName;
+    private final Marker myMarker;
+    private boolean myLoaded;
+
+    LazyDirectoryNode(@NotNull Project project, @NotNull Entry entry, @NotNull String name, @Nullable Marker marker) {
+        super(project);
+        myProject = project;
+        myEntry = entry;
+        myName = name;
+        myMarker = marker;
+    }
+
+    /**
+     * Number of files in this directory and all directories under it.
+     */
+    public int getFilesCount() {
+        return myEntry.myFilesCount;
+    }
+
+    @Override
+    public boolean isLeaf() {
+        return false;
+    }
+
+    @Override
+    public int getChildCount() {
+        ensureLoaded();
+        return super.getChildCount();
+    }
+
+    @Override
+    public TreeNode getChildAt(int index) {
+        ensureLoaded();
+        return super.getChildAt(index);
+    }
+
+    @Override
+    public int getIndex(TreeNode node) {
+        ensureLoaded();
+        return super.getIndex(node);
+    }
+
+    @Override
+    public Enumeration<TreeNode> children() {
+        ensureLoaded();
+        return super.children();
+    }
+
+    @Override
+    public Icon getIcon() {
+        return AllIcons.Nodes.Folder;
+    }
+
+    @Override
+    public boolean isValid() {
+        return myEntry.myDirectory == null || myEntry.myDirectory.isValid();
+    }
+
+    @Override
+    public String toString() {
+        return myName;
+    }
+
+    private void ensureLoaded() {
+        if (myLoaded) return;
+        myLoaded = true;
+        addChildren(this, myEntry, myProject, myMarker);
+    }
+
+    /**
+     * Adds nodes of the subdirectories and files of {@code entry} to {@code parent}, each sorted by name.
+     */
+    static void addChildren(@NotNull PackageDependenciesNode parent, @NotNull Entry entry, @NotNull Project project, @Nullable Marker marker) {
+        final List<Entry> directories = new ArrayList<>(entry.myDirectories.values());
+        directories.sort(Comparator.comparing(Entry::getName, String.CASE_INSENSITIVE_ORDER));
+        for (Entry directory : directories) {
+            final StringBuilder name = new StringBuilder(directory.getName());
+            Entry compacted = directory;
+            while (compacted.myFiles.isEmpty() && compacted.myDirectories.size() == 1) {
+                compacted = compacted.myDirectories.values().iterator().next();
+                name.append('/').append(compacted.getName());
+            }
+            parent.add(new LazyDirectoryNode(project, compacted, name.toString(), marker));
+        }
+        final List<VirtualFile> files = new ArrayList<>(entry.myFiles);
+        files.sort(Comparator.comparing(VirtualFile::getName, String.CASE_INSENSITIVE_ORDER));
+        for (VirtualFile file : files) {
+            if (!file.isValid()) continue;
+            parent.add(new FileNode(file, project, marker != null && marker.isMarked(file)));
+        }
+    }
+
+    /**
+     * Directory of the index built for a dependency list: its files and subdirectories which contain any of the files.
+     * An index isn't changed once it is built, so trees built for the same list can share it.
+     */
+    static final class Entry {
+        @Nullable
+        private final VirtualFile myDirectory;
+        private final Map<VirtualFile, Entry> myDirectories = new HashMap<>();
+        private final List<VirtualFile> myFiles = new ArrayList<>();
+        private int myFilesCount;
+
+        Entry(@Nullable VirtualFile directory) {
+            myDirectory = directory;
+        }
+
+        String getName() {
+            return myDirectory == null ? "" : myDirectory.getName();
+        }
+
+        /**
+         * Index of {@code files} by directory, up to {@code baseDir}. Directories outside of it are indexed up to the file
+         * system root.
+         */
+        static Entry index(@NotNull Collection<VirtualFile> files, @Nullable VirtualFile baseDir) {
+            final Entry root = new Entry(null);
+            final Map<VirtualFile, Entry> entries = new HashMap<>();
+            for (VirtualFile file : files) {
+                entryOf(file.getParent(), baseDir, root, entries).myFiles.add(file);
+            }
+            root.countFiles();
+            return root;
+        }
+
+        private int countFiles() {
+            myFilesCount = myFiles.size();
+            for (Entry directory : myDirectories.values()) {
+                myFilesCount += directory.countFiles();
+            }
+            return myFilesCount;
+        }
+
+        private static Entry entryOf(@Nullable VirtualFile dir, @Nullable VirtualFile baseDir, Entry root, Map<VirtualFile, Entry> entries) {
+            if (dir == null || dir.equals(baseDir)) return root;
+            Entry entry = entries.get(dir);
+            if (entry != null) return entry;
+            entry = new Entry(dir);
+            entries.put(dir, entry);
+            entryOf(dir.getParent(), baseDir, root, entries).myDirectories.put(dir, entry);
+            return entry;
+        }
+    }
+}
@@ -236,10 +236,10 @@ public final class MyDependenciesPanel extends JPanel implements Disposable, Dat
     if (myTransitiveBorder == 0) return;
     Set<PsiFile> initialSearchFor = new HashSet<>(searchFor);
     for (MyDependenciesBuilder builder : myBuilders) {
+      final MyDependencyPathFinder pathFinder = builder.getPathFinder();
       for (PsiFile from : searchIn) {
         for (PsiFile to : initialSearchFor) {
-          final List<List<PsiFile>> paths = builder.findPaths(from, to);
-          paths.sort(Comparator.comparingInt(List::size));
+          final List<List<PsiFile>> paths = pathFinder.findShortestPaths(from, to);
           for (List<PsiFile> path : paths) {
             if (!path.isEmpty()){
               path.add(0, from);
@@ -945,13 +945,7 @@ public final class MyDependenciesPanel extends JPanel implements Disposable, Dat
               if (hasDirectDependencies) break;
               for (PsiFile to : searchFor) {
                 if (hasDirectDependencies) break;
-                final List<List<PsiFile>> paths = builder.findPaths(from, to);
-                for (List<PsiFile> path : paths) {
-                  if (path.isEmpty()) {
-                    hasDirectDependencies = true;
-                    break;
-                  }
-                }
+                hasDirectDependencies = builder.getPathFinder().hasDirectDependency(from, to);
               }
             }
           }
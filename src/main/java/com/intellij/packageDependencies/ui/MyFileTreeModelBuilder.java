@@ -37,6 +37,7 @@ import com.intellij.openapi.roots.ProjectRootManager;
 import com.intellij.openapi.util.Comparing;
 import com.intellij.openapi.util.Key;
 import com.intellij.openapi.util.NlsContexts;
+import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vfs.VfsUtilCore;
 import com.intellij.openapi.vfs.VirtualFile;
@@ -59,6 +60,9 @@ public class MyFileTreeModelBuilder {
     private static final Logger LOG = Logger.getInstance(MyFileTreeModelBuilder.class);
 
     public static final Key<Integer> FILE_COUNT = Key.create("FILE_COUNT");
+    private static final int LAZY_FILES_THRESHOLD = 300;
+    private static final Key<Map<Object, LazyDirectoryNode.Entry>> DIRECTORY_INDEXES = Key.create("DIRECTORY_INDEXES");
+    private static final int MAX_CACHED_DIRECTORY_INDEXES = 48;
     private final ProjectFileIndex myFileIndex;
     private final Project myProject;
 
@@ -88,8 +92,14 @@ public class MyFileTreeModelBuilder {
     private JTree myTree;
     protected final VirtualFile myBaseDir;
     protected VirtualFile[] myContentRoots;
+    private final @Nullable Object myIndexKey;
 
     public MyFileTreeModelBuilder(@NotNull Project project, Marker marker, DependenciesPanel.DependencyPanelSettings settings) {
+        this(project, marker, settings, null);
+    }
+
+    private MyFileTreeModelBuilder(@NotNull Project project, Marker marker, DependenciesPanel.DependencyPanelSettings settings, @Nullable Object indexKey) {
+        myIndexKey = indexKey;
         myProject = project;
         myBaseDir = myProject.getBaseDir();
         myContentRoots = ProjectRootManager.getInstance(myProject).getContentRoots();
@@ -130,8 +140,17 @@ public class MyFileTreeModelBuilder {
         myTree = tree;
     }
 
-    public static synchronized TreeModel createTreeModel(Project project, boolean showProgress, Set<VirtualFile> forwardFiles, Set<VirtualFile> backwardFiles, Set<VirtualFile> cycleFiles, Marker marker, DependenciesPanel.DependencyPanelSettings settings) {
-        return new MyFileTreeModelBuilder(project, marker, settings).build(forwardFiles, backwardFiles, cycleFiles, showProgress);
+    public static TreeModel createTreeModel(Project project, boolean showProgress, Set<VirtualFile> forwardFiles, Set<VirtualFile> backwardFiles, Set<VirtualFile> cycleFiles, Marker marker, DependenciesPanel.DependencyPanelSettings settings) {
+        return createTreeModel(project, showProgress, forwardFiles, backwardFiles, cycleFiles, marker, settings, null);
+    }
+
+    /**
+     * Same as the method above, but directory indexes of long lists are kept by {@code indexKey}, which has to identify the
+     * files of the lists, like a file and the analysis version its dependencies are taken from. Trees built again for the
+     * same key, for another marker or after a settings change, reuse the indexes instead of building them from all files.
+     */
+    public static TreeModel createTreeModel(Project project, boolean showProgress, Set<VirtualFile> forwardFiles, Set<VirtualFile> backwardFiles, Set<VirtualFile> cycleFiles, Marker marker, DependenciesPanel.DependencyPanelSettings settings, @Nullable Object indexKey) {
+        return new MyFileTreeModelBuilder(project, marker, settings, indexKey).build(forwardFiles, backwardFiles, cycleFiles, showProgress);
     }
 
     private void countFiles(Project project) {
@@ -151,6 +170,23 @@ public class MyFileTreeModelBuilder {
 
     public static void clearCaches(Project project) {
         project.putUserData(FILE_COUNT, null);
+        project.putUserData(DIRECTORY_INDEXES, null);
+    }
+
+    private static Map<Object, LazyDirectoryNode.Entry> directoryIndexes(Project project) {
+        synchronized (DIRECTORY_INDEXES) {
+            Map<Object, LazyDirectoryNode.Entry> indexes = project.getUserData(DIRECTORY_INDEXES);
+            if (indexes == null) {
+                indexes = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<Object, LazyDirectoryNode.Entry> eldest) {
+                        return size() > MAX_CACHED_DIRECTORY_INDEXES;
+                    }
+                });
+                project.putUserData(DIRECTORY_INDEXES, indexes);
+            }
+            return indexes;
+        }
     }
 
     private void counting() {
@@ -178,21 +214,9 @@ public class MyFileTreeModelBuilder {
             myRoot.add(mCycleDependenciesNode);
         }
         Runnable buildingRunnable = () -> {
-            for (final VirtualFile file : forwardFiles) {
-                if (file != null) {
-                    ReadAction.run(() -> buildFileNode(file, null, DependencyType.FORWARD));
-                }
-            }
-            for (final VirtualFile file : backwardFiles) {
-                if (file != null) {
-                    ReadAction.run(() -> buildFileNode(file, null, DependencyType.BACKWARD));
-                }
-            }
-            for (final VirtualFile file : cycleFiles) {
-                if (file != null) {
-                    ReadAction.run(() -> buildFileNode(file, null, DependencyType.CYCLE));
-                }
-            }
+            buildFileNodes(forwardFiles, DependencyType.FORWARD);
+            buildFileNodes(backwardFiles, DependencyType.BACKWARD);
+            buildFileNodes(cycleFiles, DependencyType.CYCLE);
         };
 
         if (showProgress) {
@@ -202,10 +226,50 @@ public class MyFileTreeModelBuilder {
             buildingRunnable.run();
         }
 
-        TreeUtil.sortRecursively(mForwardDependenciesNode, new DependencyNodeComparator());
+        if (forwardFiles.size() <= LAZY_FILES_THRESHOLD) {
+            TreeUtil.sortRecursively(mForwardDependenciesNode, new DependencyNodeComparator());
+        }
         return new TreeModel(myRoot, myTotalFileCount, myMarkedFileCount);
     }
 
+    /**
+     * Builds nodes of all {@code files} right away, or only an index of their directories for long lists, whose nodes
+     * are then created as they are expanded, see {@link LazyDirectoryNode}. Indexes of lists shown whether or not their
+     * files are marked are cached by the index key of the builder.
+     */
+    private void buildFileNodes(Set<VirtualFile> files, DependencyType dependencyType) {
+        if (files.size() <= LAZY_FILES_THRESHOLD) {
+            for (final VirtualFile file : files) {
+                ProgressManager.checkCanceled();
+                if (file != null) {
+                    ReadAction.run(() -> buildFileNode(file, null, dependencyType));
+                }
+            }
+            return;
+        }
+        final Object indexKey = myIndexKey != null && myAddUnmarkedFiles ? Pair.create(myIndexKey, dependencyType) : null;
+        LazyDirectoryNode.Entry index = indexKey == null ? null : directoryIndexes(myProject).get(indexKey);
+        final List<VirtualFile> shownFiles = index == null ? new ArrayList<>(files.size()) : null;
+        if (shownFiles != null || myMarker != null) {
+            for (final VirtualFile file : files) {
+                ProgressManager.checkCanceled();
+                if (file == null || !file.isValid()) continue;
+                boolean isMarked = myMarker != null && myMarker.isMarked(file);
+                if (isMarked) myMarkedFileCount++;
+                if (shownFiles != null && (isMarked || myAddUnmarkedFiles)) {
+                    shownFiles.add(file);
+                }
+            }
+        }
+        if (index == null) {
+            index = LazyDirectoryNode.Entry.index(shownFiles, myBaseDir);
+            if (indexKey != null) {
+                directoryIndexes(myProject).put(indexKey, index);
+            }
+        }
+        LazyDirectoryNode.addChildren(getMainNode(dependencyType), index, myProject, myMarker);
+    }
+
     private PackageDependenciesNode buildFileNode(VirtualFile file, PackageDependenciesNode lastParent, DependencyType dependencyType) {
         ProgressIndicator indicator = ProgressManager.getInstance().getProgressIndicator();
         if (file == null || !file.isValid()) return null;
@@ -5,6 +5,7 @@ import com.github.pberdnik.dependenciesanalyzerplugin.old.file.CodeFile
 import com.github.pberdnik.dependenciesanalyzerplugin.storage.GraphStorageService
 import com.intellij.openapi.actionSystem.AnAction
 import com.intellij.openapi.actionSystem.AnActionEvent
+import com.intellij.openapi.application.ApplicationManager
 import com.intellij.openapi.ui.Messages
 import java.util.*
 import javax.swing.Icon
@@ -46,20 +47,23 @@ class ChangeGraphNameAction : AnAction {
         // Using the event, create and show a dialog
         val currentProject = event.project ?: return
         val graphStorageService = GraphStorageService.getInstance(currentProject)
-        val graph = graphStorageService.state
         val random = Random()
         val randomPath = "/random/path${random.nextInt() % 12}"
 //        val codeFiles = mutableSetOf<CodeFile>()
 //        codeFiles.add(CodeFile(randomPath, 0, listOf()))
 //        graph.codeFiles = codeFiles.toList()
-        graph.codeFiles[randomPath] =
-            CodeFile(
-                randomPath,
-                "custom",
-                "SomeClass.java",
-                0,
-                listOf()
-            )
+        ApplicationManager.getApplication().executeOnPooledThread {
+            val codeFiles = graphStorageService.graph.codeFiles()
+            codeFiles[randomPath] =
+                CodeFile(
+                    randomPath,
+                    "custom",
+                    "SomeClass.java",
+                    0,
+                    listOf()
+                )
+            graphStorageService.saveGraph(codeFiles)
+        }
         val dlgMsg = "Added path: $randomPath"
         val dlgTitle = "Graph Name Changed"
         Messages.showMessageDialog(currentProject, dlgMsg, dlgTitle, Messages.getInformationIcon())
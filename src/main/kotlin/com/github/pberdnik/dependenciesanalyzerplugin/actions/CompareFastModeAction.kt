@@ -0,0 +1,104 @@
+package com.github.pberdnik.dependenciesanalyzerplugin.actions
+
+import com.github.pberdnik.dependenciesanalyzerplugin.storage.AnalysisMetrics
+import com.github.pberdnik.dependenciesanalyzerplugin.storage.GraphStorageService
+import com.intellij.analysis.AnalysisScope
+import com.intellij.icons.AllIcons
+import com.intellij.openapi.actionSystem.AnAction
+import com.intellij.openapi.actionSystem.AnActionEvent
+import com.intellij.openapi.application.ReadAction
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.progress.Task
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.ui.Messages
+import com.intellij.packageDependencies.actions.MyForwardDependenciesBuilder
+import com.intellij.psi.PsiFile
+
+private const val WORST_FILES = 10
+
+/**
+ * Analyzes the project in fast mode and in full mode without storing anything, and reports how many of the
+ * dependencies found by full resolution fast mode finds too, how many it finds which full resolution doesn't, and how
+ * much faster it is. Fast mode runs first, so it doesn't profit from files loaded by full mode.
+ */
+class CompareFastModeAction : AnAction("Compare Fast Mode", "Compare dependencies and speed of fast and full analysis", AllIcons.Actions.Diff) {
+    private val LOG = Logger.getInstance(CompareFastModeAction::class.java)
+
+    override fun actionPerformed(e: AnActionEvent) {
+        val project = e.project ?: return
+        object : Task.Backgroundable(project, "Comparing fast and full analysis", true) {
+            private var report = ""
+
+            override fun run(indicator: ProgressIndicator) {
+                indicator.text = "Analyzing in fast mode"
+                val fast = analyze(project, true)
+                indicator.text = "Analyzing in full mode"
+                val full = analyze(project, false)
+                report = report(fast, full)
+                LOG.info("Fast mode comparison:\n$report")
+            }
+
+            override fun onSuccess() {
+                Messages.showInfoMessage(project, report, "Fast Mode Comparison")
+            }
+        }.queue()
+    }
+
+    private class Run(val dependencies: Map<String, Set<String>>, val millis: Double, val resolvedCount: Long)
+
+    private fun analyze(project: Project, fastMode: Boolean): Run {
+        val storage = GraphStorageService.getInstance(project)
+        val converter = CodeFileConverter(storage.graphConfig)
+        val metrics = AnalysisMetrics()
+        val builder = MyForwardDependenciesBuilder(project, AnalysisScope(project))
+        builder.parallelism = storage.graphConfig.graphConfigState.analysisThreads
+        builder.setFastMode(fastMode)
+        // both runs resolve every file, dependencies reused from the stored graph would come from one of the modes
+        builder.setDependenciesCache(null)
+        builder.setBoundedMemory(true)
+        builder.setMetrics(metrics)
+        builder.setFileFilter { !converter.isFiltered(it) }
+        builder.analyze()
+        val stats = metrics.stats()
+        val dependencies = ReadAction.compute<Map<String, Set<String>>, RuntimeException> {
+            fun PsiFile.graphPath() = if (converter.isFiltered(this)) null else virtualFile?.path
+            builder.directDependencies.entries.mapNotNull { (file, fileDeps) ->
+                file.graphPath()?.let { path -> path to fileDeps.mapNotNullTo(HashSet()) { it.graphPath() } }
+            }.toMap()
+        }
+        return Run(
+            dependencies,
+            stats.phases.firstOrNull { it.name == AnalysisMetrics.VISITATION }?.millis ?: 0.0,
+            stats.phases.firstOrNull { it.name == AnalysisMetrics.RESOLUTION }?.count ?: 0L
+        )
+    }
+
+    private fun report(fast: Run, full: Run): String {
+        val fullEdges = full.dependencies.values.sumOf { it.size }
+        val fastEdges = fast.dependencies.values.sumOf { it.size }
+        var commonEdges = 0
+        val fileRecalls = full.dependencies.mapNotNull { (path, fullDeps) ->
+            if (fullDeps.isEmpty()) return@mapNotNull null
+            val found = fast.dependencies[path].orEmpty().count { it in fullDeps }
+            commonEdges += found
+            Triple(path, found, fullDeps.size)
+        }
+        fun percent(part: Int, whole: Int) = if (whole > 0) "%.1f%%".format(100.0 * part / whole) else "-"
+        return buildString {
+            appendLine("Files: ${full.dependencies.size}, resolved in fast mode: ${fast.resolvedCount}")
+            appendLine("Full mode: ${"%.0f".format(full.millis)} ms, $fullEdges dependencies")
+            appendLine("Fast mode: ${"%.0f".format(fast.millis)} ms, $fastEdges dependencies, " +
+                "${if (fast.millis > 0) "%.1f".format(full.millis / fast.millis) else "-"} times faster")
+            appendLine("Recall: ${percent(commonEdges, fullEdges)} of the dependencies of full mode are found")
+            appendLine("Precision: ${percent(commonEdges, fastEdges)} of the dependencies of fast mode are real")
+            val worst = fileRecalls.filter { (_, found, total) -> found < total }
+                .sortedBy { (_, found, total) -> found.toDouble() / total }
+                .take(WORST_FILES)
+            if (worst.isNotEmpty()) {
+                appendLine("Lowest recall:")
+                worst.forEach { (path, found, total) -> appendLine("  $path: $found of $total") }
+            }
+        }
+    }
+}
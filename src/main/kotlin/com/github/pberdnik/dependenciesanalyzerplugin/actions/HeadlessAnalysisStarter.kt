@@ -0,0 +1,172 @@
+package com.github.pberdnik.dependenciesanalyzerplugin.actions
+
+import com.github.pberdnik.dependenciesanalyzerplugin.storage.AnalysisMetrics
+import com.github.pberdnik.dependenciesanalyzerplugin.storage.GraphStorageService
+import com.github.pberdnik.dependenciesanalyzerplugin.storage.measure
+import com.intellij.analysis.AnalysisScope
+import com.intellij.ide.impl.ProjectUtil
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.application.ApplicationStarter
+import com.intellij.openapi.application.ex.ApplicationEx
+import com.intellij.openapi.application.ex.ApplicationManagerEx
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.module.ModuleManager
+import com.intellij.openapi.progress.EmptyProgressIndicator
+import com.intellij.openapi.progress.ProgressManager
+import com.intellij.openapi.project.DumbService
+import com.intellij.openapi.project.Project
+import com.intellij.packageDependencies.actions.MyForwardDependenciesBuilder
+import java.lang.management.ManagementFactory
+import java.lang.management.MemoryType
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.util.concurrent.TimeUnit
+
+private const val USAGE = "Usage: analyzeDependencies <project path> [-module <name>]... [-output <directory>] [-stats <file>] [-fast]"
+
+/**
+ * Runs the dependency analysis without a UI, for example on a CI server:
+ *
+ * `idea analyzeDependencies <project path> [-module <name>]... [-output <directory>] [-stats <file>] [-fast]`
+ *
+ * The project is opened and indexed, then the forward dependencies of the given modules, or of the whole project, are
+ * analyzed into the stored graph of the project. With `-output` the graph is also exported there, and developers can
+ * import it with [ImportGraphAction] instead of analyzing the project themselves.
+ *
+ * Wall time, analyzed files per second, peak heap usage and the time of every phase are printed at the end. With
+ * `-stats` the phase metrics are also written there as JSON. `-fast` takes dependencies from imports where it can, see
+ * [MyForwardDependenciesBuilder.setFastMode]. Results are always kept in bounded memory mode, only the stored graph is
+ * needed.
+ */
+class HeadlessAnalysisStarter : ApplicationStarter {
+    private val LOG = Logger.getInstance(HeadlessAnalysisStarter::class.java)
+
+    override val commandName: String get() = "analyzeDependencies"
+
+    override fun main(args: List<String>) {
+        val options = Options.parse(args.drop(1))
+        if (options == null) {
+            System.err.println(USAGE)
+            exit(1)
+            return
+        }
+        ApplicationManager.getApplication().executeOnPooledThread {
+            val exitCode = try {
+                run(options)
+            } catch (e: Throwable) {
+                LOG.error("Dependency analysis failed", e)
+                1
+            }
+            exit(exitCode)
+        }
+    }
+
+    private fun run(options: Options): Int {
+        val start = System.nanoTime()
+        val project = ProjectUtil.openOrImport(options.projectPath, null, true)
+        if (project == null) {
+            System.err.println("Can't open project ${options.projectPath}")
+            return 1
+        }
+        DumbService.getInstance(project).waitForSmartMode()
+        val indexed = System.nanoTime()
+
+        val scope = scopeOf(project, options.modules) ?: return 1
+        val storage = GraphStorageService.getInstance(project)
+        val fastMode = options.fastMode || storage.graphConfig.graphConfigState.fastMode
+        val converter = CodeFileConverter(storage.graphConfig, fastMode)
+        val writer = storage.newGraphWriter(converter.analysisFingerprint)
+        val metrics = AnalysisMetrics()
+        val builder = MyForwardDependenciesBuilder(project, scope)
+        builder.parallelism = storage.graphConfig.graphConfigState.analysisThreads
+        builder.setFastMode(fastMode)
+        builder.setBoundedMemory(true)
+        builder.setMetrics(metrics)
+        builder.setFileFilter { !converter.isFiltered(it) }
+        builder.setDependenciesListener { file, dependencies ->
+            metrics.measure(AnalysisMetrics.CONVERSION) { converter.convert(file, dependencies)?.let { writer.add(it) } }
+        }
+        try {
+            ProgressManager.getInstance().runProcess({ builder.analyze() }, EmptyProgressIndicator())
+        } catch (e: Throwable) {
+            storage.releaseGraphWriter(writer)
+            throw e
+        }
+        if (!metrics.measure(AnalysisMetrics.GRAPH_SAVE) { storeAnalysisResult(project, writer, converter) }) {
+            System.err.println("Can't save the dependencies graph to ${writer.dir}")
+            return 1
+        }
+        storage.excludeSlowFiles(metrics)
+        val analyzed = System.nanoTime()
+        options.output?.let {
+            storage.exportGraph(it)
+            println("Exported ${storage.graph.filesCount} files to $it")
+        }
+
+        val stats = metrics.stats()
+        options.stats?.let { Files.writeString(it, stats.toJson()) }
+
+        val analysisSeconds = (analyzed - indexed) / 1e9
+        val analyzedCount = stats.filesCount
+        println("Analyzed $analyzedCount files with ${stats.edgesCount} dependencies of ${scope.displayName}")
+        println("Wall time: ${TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start)} s, " +
+            "opening and indexing: ${TimeUnit.NANOSECONDS.toSeconds(indexed - start)} s, " +
+            "analysis: ${TimeUnit.NANOSECONDS.toSeconds(analyzed - indexed)} s")
+        println("Files per second: ${"%.1f".format(if (analysisSeconds > 0) analyzedCount / analysisSeconds else 0.0)}")
+        println("Peak heap: ${peakHeapBytes() / (1024 * 1024)} MB")
+        stats.phases.forEach { println("  ${it.name}: ${"%.0f".format(it.millis)} ms, ${it.allocatedBytes / (1024 * 1024)} MB allocated") }
+        println("Slowest files:")
+        stats.slowestFiles.take(10).forEach { println("  ${it.path}: ${"%.0f".format(it.resolveMillis)} ms, ${it.references} references") }
+        stats.excludedFiles.forEach { println("Excluded from later analyses: $it") }
+        return 0
+    }
+
+    private fun scopeOf(project: Project, moduleNames: List<String>): AnalysisScope? {
+        if (moduleNames.isEmpty()) return AnalysisScope(project)
+        val moduleManager = ModuleManager.getInstance(project)
+        val modules = moduleNames.map { name ->
+            moduleManager.findModuleByName(name) ?: run {
+                System.err.println("No module $name in ${project.name}")
+                return null
+            }
+        }
+        return AnalysisScope(modules.toTypedArray())
+    }
+
+    /**
+     * Sum of the peak usages of all heap memory pools, an upper bound of the peak heap usage since the start.
+     */
+    private fun peakHeapBytes() = ManagementFactory.getMemoryPoolMXBeans()
+        .filter { it.type == MemoryType.HEAP }
+        .sumOf { it.peakUsage?.used ?: 0L }
+
+    private fun exit(exitCode: Int) {
+        ApplicationManager.getApplication().invokeLater {
+            ApplicationManagerEx.getApplicationEx().exit(ApplicationEx.FORCE_EXIT or ApplicationEx.EXIT_CONFIRMED or ApplicationEx.SAVE, exitCode)
+        }
+    }
+
+    private class Options(val projectPath: Path, val modules: List<String>, val output: Path?, val stats: Path?, val fastMode: Boolean) {
+        companion object {
+            fun parse(args: List<String>): Options? {
+                var projectPath: Path? = null
+                val modules = mutableListOf<String>()
+                var output: Path? = null
+                var stats: Path? = null
+                var fastMode = false
+                val iterator = args.iterator()
+                while (iterator.hasNext()) {
+                    when (val arg = iterator.next()) {
+                        "-module" -> modules += if (iterator.hasNext()) iterator.next() else return null
+                        "-output" -> output = if (iterator.hasNext()) Paths.get(iterator.next()).toAbsolutePath() else return null
+                        "-stats" -> stats = if (iterator.hasNext()) Paths.get(iterator.next()).toAbsolutePath() else return null
+                        "-fast" -> fastMode = true
+                        else -> if (projectPath == null) projectPath = Paths.get(arg).toAbsolutePath() else return null
+                    }
+                }
+                return Options(projectPath ?: return null, modules, output, stats, fastMode)
+            }
+        }
+    }
+}
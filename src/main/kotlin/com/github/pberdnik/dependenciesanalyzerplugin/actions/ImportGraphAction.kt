@@ -0,0 +1,45 @@
+package com.github.pberdnik.dependenciesanalyzerplugin.actions
+
+import com.github.pberdnik.dependenciesanalyzerplugin.storage.GraphStorageService
+import com.intellij.ide.projectView.ProjectView
+import com.intellij.openapi.actionSystem.AnAction
+import com.intellij.openapi.actionSystem.AnActionEvent
+import com.intellij.openapi.fileChooser.FileChooser
+import com.intellij.openapi.fileChooser.FileChooserDescriptorFactory
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.progress.Task
+import com.intellij.openapi.ui.Messages
+import icons.SdkIcons
+import java.io.IOException
+
+/**
+ * Imports a graph exported by [HeadlessAnalysisStarter] and analyzes it, instead of analyzing the project here.
+ */
+class ImportGraphAction : AnAction("Import Dependencies Graph...", "Import a dependencies graph analyzed elsewhere", SdkIcons.coloredGraph) {
+    override fun actionPerformed(e: AnActionEvent) {
+        val project = e.project ?: return
+        val dir = FileChooser.chooseFile(FileChooserDescriptorFactory.createSingleFolderDescriptor(), project, null) ?: return
+        val storage = GraphStorageService.getInstance(project)
+        object : Task.Backgroundable(project, "Importing dependencies graph", true) {
+            private var error: IOException? = null
+
+            override fun run(indicator: ProgressIndicator) {
+                try {
+                    storage.importGraph(dir.toNioPath())
+                } catch (e: IOException) {
+                    error = e
+                    return
+                }
+                storage.analyze(indicator)
+            }
+
+            override fun onSuccess() {
+                error?.let {
+                    Messages.showErrorDialog(project, it.message, "Import Dependencies Graph")
+                    return
+                }
+                ProjectView.getInstance(project).refresh()
+            }
+        }.queue()
+    }
+}
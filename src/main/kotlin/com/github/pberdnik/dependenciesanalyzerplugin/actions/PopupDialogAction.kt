@@ -46,7 +46,7 @@ class PopupDialogAction : AnAction {
         // Using the event, create and show a dialog
         val currentProject = event.project ?: return
         val graphStorageService = GraphStorageService.getInstance(currentProject)
-        val dlgMsg = "Code files count: ${graphStorageService.state.codeFiles.size}"
+        val dlgMsg = "Code files count: ${graphStorageService.graph.filesCount}"
         val dlgTitle = "Code Files Count"
         Messages.showMessageDialog(currentProject, dlgMsg, dlgTitle, Messages.getInformationIcon())
     }
@@ -2,61 +2,153 @@ package com.github.pberdnik.dependenciesanalyzerplugin.actions
 
 import com.github.pberdnik.dependenciesanalyzerplugin.old.file.CodeFile
 import com.github.pberdnik.dependenciesanalyzerplugin.old.graph.GraphConfig
+import com.github.pberdnik.dependenciesanalyzerplugin.storage.AnalysisMetrics
+import com.github.pberdnik.dependenciesanalyzerplugin.storage.GraphShardWriter
 import com.github.pberdnik.dependenciesanalyzerplugin.storage.GraphStorageService.Companion.getInstance
+import com.github.pberdnik.dependenciesanalyzerplugin.storage.measure
+import com.intellij.openapi.application.ReadAction
+import com.intellij.openapi.diagnostic.Logger
 import com.intellij.openapi.module.ModuleUtil
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.progress.ProgressManager
+import com.intellij.openapi.progress.Task
+import com.intellij.openapi.progress.util.ProgressIndicatorUtils
 import com.intellij.openapi.project.Project
+import com.intellij.openapi.vfs.VirtualFile
 import com.intellij.psi.PsiFile
-import java.util.*
+import com.intellij.util.concurrency.AppExecutorUtil
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
 
-fun performAction(dependencies: MutableMap<PsiFile, MutableSet<PsiFile>>, project: Project) {
+private val LOG = Logger.getInstance("#com.github.pberdnik.dependenciesanalyzerplugin.actions.SaveAnalysisResultActionExtensions")
+
+private const val BATCH_SIZE = 256
+
+/**
+ * Stores [dependencies] as the graph and analyzes it in a background task. The map is copied first, so the caller may
+ * change it afterwards.
+ */
+fun performAction(dependencies: Map<PsiFile, Set<PsiFile>>, project: Project) {
+    val analyzed = HashMap(dependencies)
+    object : Task.Backgroundable(project, "Saving dependencies analysis result", true) {
+        override fun run(indicator: ProgressIndicator) = saveDependencies(analyzed, project, indicator)
+    }.queue()
+}
+
+private fun saveDependencies(dependencies: Map<PsiFile, Set<PsiFile>>, project: Project, indicator: ProgressIndicator) {
+    val start = System.nanoTime()
+    val metrics = AnalysisMetrics()
     val storage = getInstance(project)
-    val codeFiles = mutableMapOf<String, CodeFile>()
-    val config = storage.graphConfig
-    val files = dependencies.keys
-    for (file in files) {
-        if (file.isBad(config)) continue
-        val codeFile = codeFiles.createAndAddCodeFile(file)
-        val deps: MutableList<String> = ArrayList()
-        val fileDeps = dependencies[file] ?: Collections.emptyList()
-        for (dep in fileDeps) {
-            if (dep.isBad(config)) continue
-            codeFiles.createAndAddCodeFile(dep)
-            deps.add(dep.virtualFile.path)
+    val converter = CodeFileConverter(storage.graphConfig)
+    val writer = storage.newGraphWriter(converter.analysisFingerprint)
+    val executor = AppExecutorUtil.createBoundedApplicationPoolExecutor("Dependencies Conversion", storage.graphConfig.graphConfigState.analysisThreads)
+    val batches = mutableListOf<Future<*>>()
+    try {
+        dependencies.keys.chunked(BATCH_SIZE).forEach { batch ->
+            batches += executor.submit {
+                ProgressManager.getInstance().executeProcessUnderProgress({
+                    metrics.measure(AnalysisMetrics.CONVERSION) {
+                        ReadAction.run<RuntimeException> {
+                            batch.forEach { file -> converter.convert(file, dependencies[file] ?: emptySet())?.let { writer.add(it) } }
+                        }
+                    }
+                }, indicator)
+            }
         }
-        codeFile.dependencies = deps
+        batches.forEach { ProgressIndicatorUtils.awaitWithCheckCanceled(it) }
+    } catch (e: Throwable) {
+        storage.releaseGraphWriter(writer)
+        throw e
+    } finally {
+        batches.forEach { it.cancel(false) }
+        executor.shutdown()
     }
+    LOG.info("Converted ${dependencies.size} analyzed files in ${TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)} ms")
 
-    val state = storage.state
-    state.codeFiles = codeFiles
-
-    storage.analyze()
+    saveAnalysisResult(project, writer, converter, metrics)
 }
 
-private fun MutableMap<String, CodeFile>.createAndAddCodeFile(
-    file: PsiFile
-): CodeFile {
-    val virtualFile = file.virtualFile
-    val path = virtualFile.path
-    return this[path] ?: run {
-        val module = ModuleUtil.findModuleForFile(file)?.name ?: ""
-        val newCodeFile = CodeFile(path, module, virtualFile.name, virtualFile.length, mutableListOf())
-        this[path] = newCodeFile
-        newCodeFile
+/**
+ * Completes a graph whose analyzed files were already added to [writer], stores it and runs graph analysis on it.
+ *
+ * @param metrics metrics of the run so far, graph save and graph analysis phases are added to them
+ */
+fun saveAnalysisResult(project: Project, writer: GraphShardWriter, converter: CodeFileConverter, metrics: AnalysisMetrics) {
+    val storage = getInstance(project)
+    metrics.measure(AnalysisMetrics.GRAPH_SAVE) { storeAnalysisResult(project, writer, converter) }
+    storage.excludeSlowFiles(metrics)
+
+    val indicator = ProgressManager.getInstance().progressIndicator
+    if (indicator != null) {
+        storage.analyze(indicator, metrics)
+    } else {
+        storage.analyzeInBackground(metrics)
     }
 }
 
-private fun PsiFile.isBad(config: GraphConfig): Boolean {
-    val path = virtualFile.path
-    val className = virtualFile.name
-    val module = ModuleUtil.findModuleForFile(this)?.name ?: ""
+/**
+ * Completes a graph whose analyzed files were already added to [writer] and stores it without analyzing it.
+ *
+ * @return false if the graph couldn't be written
+ */
+fun storeAnalysisResult(project: Project, writer: GraphShardWriter, converter: CodeFileConverter): Boolean {
+    converter.dependencyOnlyFiles().forEach { writer.add(it) }
+    return getInstance(project).commitGraph(writer)
+}
+
+/**
+ * Turns analyzed files into code files. Module, path, size and filter verdict of a file are looked up once however
+ * many files depend on it, and all code files share the same path instance for a file. Safe to use from several
+ * threads, every call needs read access.
+ */
+class CodeFileConverter(private val config: GraphConfig, fastMode: Boolean = config.graphConfigState.fastMode) {
+    private class FileInfo(val path: String, val module: String, val className: String, val size: Long, val stamp: Long, val isBad: Boolean)
+
+    private val infos = ConcurrentHashMap<VirtualFile, FileInfo>()
+    private val converted = ConcurrentHashMap.newKeySet<String>()
+    private val pathFilter = config.pathFilter
+
+    /**
+     * Fingerprint of the settings converted files are filtered and analyzed with, to be stored with them.
+     */
+    val analysisFingerprint = config.analysisFingerprint(pathFilter, fastMode)
+
+    fun convert(file: PsiFile, fileDeps: Set<PsiFile>): CodeFile? {
+        val info = file.info()
+        if (info.isBad) return null
+        val deps = fileDeps.mapNotNullTo(ArrayList(fileDeps.size)) { dep -> dep.info().takeUnless { it.isBad }?.path }
+        val codeFile = CodeFile(info.path, info.module, info.className, info.size, deps)
+        codeFile.stamp = file.virtualFile.timeStamp
+        converted.add(info.path)
+        return codeFile
+    }
 
-    if (!path.contains(config.projectDir)) return true
-    if (path.contains("\$USER_HOME\$")) return true
-    config.filteredClasses.forEach { if (path.endsWith(it)) return true }
+    /**
+     * Whether [file] is left out of the graph, so it doesn't need to be resolved.
+     */
+    fun isFiltered(file: PsiFile) = file.info().isBad
 
-    if (config.filteredModules.contains(module)) return true
-    if (className.startsWith("Whetstone")) return true
-    if (className.startsWith("Dagger")) return true
+    /**
+     * Files which were seen only as dependencies of converted files.
+     */
+    fun dependencyOnlyFiles(): List<CodeFile> = infos.values
+        .filter { !it.isBad && !converted.contains(it.path) }
+        .map { info ->
+            CodeFile(info.path, info.module, info.className, info.size, mutableListOf()).also {
+                it.stamp = info.stamp
+                it.dependencyOnly = true
+            }
+        }
 
-    return false
-}
\ No newline at end of file
+    private fun PsiFile.info(): FileInfo {
+        val virtualFile = virtualFile
+        infos[virtualFile]?.let { return it }
+        val path = virtualFile.path
+        val className = virtualFile.name
+        val module = ModuleUtil.findModuleForFile(this)?.name ?: ""
+        val isBad = !path.contains(config.projectDir) || pathFilter.isFiltered(path, className, module)
+        val info = FileInfo(path, module, className, virtualFile.length, virtualFile.timeStamp, isBad)
+        return infos.putIfAbsent(virtualFile, info) ?: info
+    }
+}
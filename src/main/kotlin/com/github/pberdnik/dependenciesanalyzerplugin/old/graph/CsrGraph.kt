@@ -0,0 +1,358 @@
+package com.github.pberdnik.dependenciesanalyzerplugin.old.graph
+
+import com.github.pberdnik.dependenciesanalyzerplugin.old.file.CodeFile
+import com.github.pberdnik.dependenciesanalyzerplugin.storage.AnalysisMetrics
+import com.github.pberdnik.dependenciesanalyzerplugin.storage.measure
+import it.unimi.dsi.fastutil.ints.IntArrayList
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap
+
+private const val WHITE = 0
+private const val GREEN = 3
+private const val RED = 4
+
+private val COLORS = Color.values()
+
+/**
+ * Dependency graph over dense int ids in compressed sparse row form: dependencies of node `i` are
+ * `forwardTargets[forwardOffsets[i] until forwardOffsets[i + 1]]`, dependents are stored the same way in the backward arrays.
+ *
+ * Colors, depths, cycles and [onlyRed] of [process] live in parallel primitive arrays, so processing a graph doesn't
+ * allocate per node or per edge.
+ *
+ * Cycles are the strongly connected components found by an iterative Tarjan pass. Components are numbered in the order
+ * Tarjan completes them, which is a topological order of the condensation DAG with dependencies first, and mobility is
+ * analyzed in that order.
+ */
+class CsrGraph private constructor(
+    val codeFiles: Array<CodeFile>,
+    private val forwardOffsets: IntArray,
+    private val forwardTargets: IntArray,
+    private val backwardOffsets: IntArray,
+    private val backwardTargets: IntArray
+) {
+    val size = codeFiles.size
+    val edgeCount get() = forwardTargets.size
+
+    private val colors = ByteArray(size)
+    private val depths = IntArray(size) { -1 }
+    private val cycleIds = IntArray(size) { -1 }
+    private val onlyReds = IntArray(size) { -1 }
+    private val cycles = mutableListOf<IntArray>()
+
+    private val componentIds = IntArray(size)
+    var componentCount = 0
+        private set
+    private val componentOffsets = IntArray(size + 1)
+    private val componentMembers = IntArray(size)
+    private var componentForwardOffsets = IntArray(1)
+    private var componentForwardTargets = IntArray(0)
+
+    private val ids: Object2IntOpenHashMap<String> by lazy {
+        val ids = Object2IntOpenHashMap<String>(size)
+        ids.defaultReturnValue(-1)
+        codeFiles.forEachIndexed { id, codeFile -> ids.put(codeFile.path, id) }
+        ids
+    }
+
+    fun idOf(path: String) = ids.getInt(path)
+
+    fun path(id: Int): String = codeFiles[id].path
+
+    fun dependencies(id: Int): IntArray = forwardTargets.copyOfRange(forwardOffsets[id], forwardOffsets[id + 1])
+
+    fun backwardDependencies(id: Int): IntArray = backwardTargets.copyOfRange(backwardOffsets[id], backwardOffsets[id + 1])
+
+    fun color(id: Int): Color = COLORS[colors[id].toInt()]
+
+    fun depth(id: Int) = depths[id]
+
+    /**
+     * Id of the cycle containing [id] or -1 if [id] is not part of any cycle, see [cycle].
+     */
+    fun cycleId(id: Int) = cycleIds[id]
+
+    fun cycle(cycleId: Int): IntArray = cycles[cycleId]
+
+    val cycleCount get() = cycles.size
+
+    fun onlyRed(id: Int) = onlyReds[id]
+
+    fun componentId(id: Int) = componentIds[id]
+
+    fun componentMembers(componentId: Int): IntArray =
+        componentMembers.copyOfRange(componentOffsets[componentId], componentOffsets[componentId + 1])
+
+    /**
+     * Components [componentId] depends on in the condensation DAG. All of them have smaller ids.
+     */
+    fun componentDependencies(componentId: Int): IntArray =
+        componentForwardTargets.copyOfRange(componentForwardOffsets[componentId], componentForwardOffsets[componentId + 1])
+
+    /**
+     * Node ids grouped by component in topological order of the condensation DAG, dependencies before dependents.
+     */
+    fun topSorted(): IntArray = componentMembers.copyOf(componentOffsets[componentCount])
+
+    fun process(config: GraphConfig, metrics: AnalysisMetrics? = null) {
+        metrics.measure(AnalysisMetrics.CYCLES) {
+            findComponents()
+            buildCondensation()
+        }
+        metrics.measure(AnalysisMetrics.MOBILITY) { analyzeMobility(config) }
+        metrics.measure(AnalysisMetrics.YELLOW) { processYellow() }
+    }
+
+    /**
+     * Finds components and the condensation only, enough for a [ReachabilityIndex] of a graph colored elsewhere.
+     */
+    fun processStructure() {
+        findComponents()
+        buildCondensation()
+    }
+
+    /**
+     * Sums sizes of the red nodes which are the only red dependency of other nodes, keyed by path.
+     */
+    fun redNodes(): Map<String, Int> {
+        val redNodes = mutableMapOf<String, Int>()
+        for (i in 0 until componentOffsets[componentCount]) {
+            val node = componentMembers[i]
+            val onlyRed = onlyReds[node]
+            if (onlyRed >= 0) {
+                redNodes[path(onlyRed)] = (redNodes[path(onlyRed)] ?: 0) + codeFiles[node].size.toInt()
+            }
+        }
+        return redNodes
+    }
+
+    fun processYellow() {
+        for (i in 0 until componentOffsets[componentCount]) {
+            processYellow(componentMembers[i])
+        }
+    }
+
+    private fun processYellow(node: Int) {
+        if (colors[node].toInt() != RED) return
+        var redDependency = -1
+        var redCount = 0
+        for (e in forwardOffsets[node] until forwardOffsets[node + 1]) {
+            val dependency = forwardTargets[e]
+            if (colors[dependency].toInt() == RED) {
+                redDependency = dependency
+                redCount++
+            }
+        }
+        if (redCount == 1) {
+            onlyReds[node] = redDependency
+        }
+    }
+
+    /**
+     * Tarjan's strongly connected components with explicit stacks, so long dependency chains can't overflow the thread stack.
+     */
+    private fun findComponents() {
+        val index = IntArray(size) { -1 }
+        val lowLink = IntArray(size)
+        val onStack = BooleanArray(size)
+        val componentStack = IntArray(size)
+        var componentStackSize = 0
+        val callStack = IntArray(size)
+        val nextEdge = IntArray(size)
+        var nextIndex = 0
+        var membersCount = 0
+        cycles.clear()
+        cycleIds.fill(-1)
+        componentCount = 0
+
+        for (start in 0 until size) {
+            if (index[start] >= 0) continue
+            var top = 0
+            callStack[0] = start
+            nextEdge[0] = forwardOffsets[start]
+            index[start] = nextIndex
+            lowLink[start] = nextIndex++
+            componentStack[componentStackSize++] = start
+            onStack[start] = true
+            while (top >= 0) {
+                val node = callStack[top]
+                if (nextEdge[top] < forwardOffsets[node + 1]) {
+                    val dependency = forwardTargets[nextEdge[top]++]
+                    if (index[dependency] < 0) {
+                        top++
+                        callStack[top] = dependency
+                        nextEdge[top] = forwardOffsets[dependency]
+                        index[dependency] = nextIndex
+                        lowLink[dependency] = nextIndex++
+                        componentStack[componentStackSize++] = dependency
+                        onStack[dependency] = true
+                    } else if (onStack[dependency] && index[dependency] < lowLink[node]) {
+                        lowLink[node] = index[dependency]
+                    }
+                    continue
+                }
+                if (lowLink[node] == index[node]) {
+                    val firstMember = membersCount
+                    do {
+                        val member = componentStack[--componentStackSize]
+                        onStack[member] = false
+                        componentIds[member] = componentCount
+                        componentMembers[membersCount++] = member
+                    } while (member != node)
+                    componentOffsets[componentCount + 1] = membersCount
+                    if (membersCount - firstMember > 1 || hasSelfDependency(node)) {
+                        val members = componentMembers.copyOfRange(firstMember, membersCount)
+                        members.forEach { cycleIds[it] = cycles.size }
+                        cycles.add(members)
+                    }
+                    componentCount++
+                }
+                top--
+                if (top >= 0) {
+                    val parent = callStack[top]
+                    if (lowLink[node] < lowLink[parent]) lowLink[parent] = lowLink[node]
+                }
+            }
+        }
+    }
+
+    private fun hasSelfDependency(node: Int) =
+        (forwardOffsets[node] until forwardOffsets[node + 1]).any { forwardTargets[it] == node }
+
+    private fun buildCondensation() {
+        val offsets = IntArray(componentCount + 1)
+        val targets = IntArrayList()
+        val lastSource = IntArray(componentCount) { -1 }
+        for (component in 0 until componentCount) {
+            for (m in componentOffsets[component] until componentOffsets[component + 1]) {
+                val node = componentMembers[m]
+                for (e in forwardOffsets[node] until forwardOffsets[node + 1]) {
+                    val dependencyComponent = componentIds[forwardTargets[e]]
+                    if (dependencyComponent != component && lastSource[dependencyComponent] != component) {
+                        lastSource[dependencyComponent] = component
+                        targets.add(dependencyComponent)
+                    }
+                }
+            }
+            offsets[component + 1] = targets.size
+        }
+        componentForwardOffsets = offsets
+        componentForwardTargets = targets.toIntArray()
+    }
+
+    private fun analyzeMobility(config: GraphConfig) {
+        colors.fill(WHITE.toByte())
+        for (i in 0 until componentOffsets[componentCount]) {
+            analyzeMobility(componentMembers[i], config)
+        }
+    }
+
+    private fun analyzeMobility(node: Int, config: GraphConfig) {
+        val codeFile = codeFiles[node]
+        val from = forwardOffsets[node]
+        val to = forwardOffsets[node + 1]
+        if (!config.greenModules.contains(codeFile.module) || cycleIds[node] >= 0 || config.redClasses.contains(codeFile.className)) {
+            markAsRed(node)
+        } else if (from == to) {
+            colors[node] = GREEN.toByte()
+            depths[node] = 0
+        } else if ((from until to).all { colors[forwardTargets[it]].toInt() == GREEN }) {
+            colors[node] = GREEN.toByte()
+            depths[node] = (from until to).maxOf { depths[forwardTargets[it]] } + 1
+        } else {
+            markAsRed(node)
+        }
+    }
+
+    private fun markAsRed(node: Int) {
+        colors[node] = RED.toByte()
+        var depth = -1
+        for (e in forwardOffsets[node] until forwardOffsets[node + 1]) {
+            val dependency = forwardTargets[e]
+            if (colors[dependency].toInt() == RED && depths[dependency] > depth) {
+                depth = depths[dependency]
+            }
+        }
+        depths[node] = depth + 1
+    }
+
+    companion object {
+        /**
+         * Builds the graph straight from stored files, skipping the same files as [asDependencyGraph].
+         */
+        fun fromCodeFiles(codeFiles: Map<String, CodeFile>, config: GraphConfig): CsrGraph {
+            val builder = Builder()
+            val pathFilter = config.pathFilter
+            codeFiles.forEach { (_, codeFile) ->
+                if (!pathFilter.isFiltered(codeFile)) {
+                    codeFile.dependencies?.forEach { dependentCodeFilePath ->
+                        val dependentCodeFile = codeFiles[dependentCodeFilePath]
+                        if (dependentCodeFile != null && !pathFilter.isFiltered(dependentCodeFile)) {
+                            builder.add(codeFile, dependentCodeFile)
+                        }
+                    }
+                }
+            }
+            return builder.build()
+        }
+
+        fun fromDependencyGraph(graph: DependencyGraph): CsrGraph {
+            val builder = Builder()
+            graph.nodes.values.forEach { builder.add(it.codeFile) }
+            graph.nodes.values.forEach { node ->
+                node.dependencies.forEach { builder.add(node.codeFile, it.codeFile) }
+            }
+            return builder.build()
+        }
+    }
+
+    private class Builder {
+        private val ids = Object2IntOpenHashMap<String>().apply { defaultReturnValue(-1) }
+        private val codeFiles = mutableListOf<CodeFile>()
+        private val sources = IntArrayList()
+        private val targets = IntArrayList()
+        private val edges = LongOpenHashSet()
+
+        fun add(codeFile: CodeFile): Int {
+            val id = ids.getInt(codeFile.path)
+            if (id >= 0) return id
+            ids.put(codeFile.path, codeFiles.size)
+            codeFiles.add(codeFile)
+            return codeFiles.size - 1
+        }
+
+        fun add(codeFile: CodeFile, dependentCodeFile: CodeFile) {
+            val source = add(codeFile)
+            val target = add(dependentCodeFile)
+            if (edges.add(source.toLong() shl 32 or target.toLong())) {
+                sources.add(source)
+                targets.add(target)
+            }
+        }
+
+        fun build(): CsrGraph {
+            val size = codeFiles.size
+            val forwardOffsets = IntArray(size + 1)
+            val backwardOffsets = IntArray(size + 1)
+            for (i in 0 until sources.size) {
+                forwardOffsets[sources.getInt(i) + 1]++
+                backwardOffsets[targets.getInt(i) + 1]++
+            }
+            for (i in 0 until size) {
+                forwardOffsets[i + 1] += forwardOffsets[i]
+                backwardOffsets[i + 1] += backwardOffsets[i]
+            }
+            val forwardTargets = IntArray(sources.size)
+            val backwardTargets = IntArray(sources.size)
+            val forwardFill = forwardOffsets.copyOf(size)
+            val backwardFill = backwardOffsets.copyOf(size)
+            for (i in 0 until sources.size) {
+                val source = sources.getInt(i)
+                val target = targets.getInt(i)
+                forwardTargets[forwardFill[source]++] = target
+                backwardTargets[backwardFill[target]++] = source
+            }
+            return CsrGraph(codeFiles.toTypedArray(), forwardOffsets, forwardTargets, backwardOffsets, backwardTargets)
+        }
+    }
+}
@@ -1,12 +1,12 @@
 package com.github.pberdnik.dependenciesanalyzerplugin.old.graph
 
+/**
+ * Strongly connected component of the graph: every node of it transitively depends on every other one.
+ */
 class Cycle {
     val nodes = mutableListOf<Node>()
 
     fun add(node: Node) {
-        if (nodes.isNotEmpty() && !node.dependencies.contains(nodes.last())) {
-            error("Adding node [$node] has no dependency on last node in cycle: [${nodes.last()}]")
-        }
         nodes.add(node)
     }
 
@@ -1,15 +1,27 @@
 package com.github.pberdnik.dependenciesanalyzerplugin.old.graph
 
 import com.github.pberdnik.dependenciesanalyzerplugin.old.file.CodeFile
+import com.github.pberdnik.dependenciesanalyzerplugin.storage.AnalysisMetrics
+import it.unimi.dsi.fastutil.ints.IntArrayList
 
+/**
+ * Dependency graph of the analyzed files. [process] finds cycles and colors on the [CsrGraph] form of the graph, later
+ * edits are patched in place by [update] and [updateMobility], which only reprocess the nodes depending on what changed.
+ * Graph queries are synchronized with the updates.
+ */
 class DependencyGraph {
     val nodes = mutableMapOf<String, Node>()
+
+    /**
+     * Nodes in topological order as of the last [process], later [update]s don't maintain it.
+     */
     val topSorted = mutableListOf<Node>()
 
     val redNodes = mutableMapOf<String, Int>()
     val sortedRedNodes get() = redNodes.toList().sortedBy { (_, size) -> size }
 
-    private val nodesInProcess = mutableListOf<Node>()
+    private var processed = false
+    private var reachability: Reachability? = null
 
     private fun add(codeFile: CodeFile): Node {
         return nodes[codeFile.path] ?: run {
@@ -26,94 +38,434 @@ class DependencyGraph {
         dependentNode.backwardDependencies.add(node)
     }
 
-    fun process(config: GraphConfig) {
-        runDfs()
-        analyzeMobility(config)
-        processYellow()
+    /**
+     * Finds cycles, runs mobility and yellow analysis on the [CsrGraph] form of this graph and copies the results to the nodes.
+     */
+    @Synchronized
+    fun process(config: GraphConfig, metrics: AnalysisMetrics? = null) {
+        val csrGraph = CsrGraph.fromDependencyGraph(this)
+        csrGraph.process(config, metrics)
+        apply(csrGraph, nodes.values.toList())
+        processed = true
+        reachability = Reachability(csrGraph)
     }
 
-    fun getNodeByClass(name: String): Node {
-        return topSorted.find { it.codeFile.className.contains(name) } ?: Node(
-            CodeFile(
-                "EMPTY"
-            )
-        )
+    /**
+     * Copy of this processed graph with its own nodes, edges, colors and cycles, which can be updated while this graph
+     * is still read. The reachability index only depends on the structure, so it is shared with the copy.
+     */
+    @Synchronized
+    fun copy(): DependencyGraph {
+        val copy = DependencyGraph()
+        nodes.forEach { (path, node) ->
+            copy.nodes[path] = Node(node.codeFile).also {
+                it._color = node._color
+                it.depth = node.depth
+            }
+        }
+        fun copyOf(node: Node) = copy.nodes.getValue(node.path)
+        val cycles = HashMap<Cycle, Cycle>()
+        nodes.values.forEach { node ->
+            val nodeCopy = copyOf(node)
+            node.dependencies.mapTo(nodeCopy.dependencies) { copyOf(it) }
+            node.backwardDependencies.mapTo(nodeCopy.backwardDependencies) { copyOf(it) }
+            nodeCopy.onlyRed = node.onlyRed?.let { copyOf(it) }
+            nodeCopy.cycle = node.cycle?.let { cycle ->
+                cycles.getOrPut(cycle) { Cycle().also { cycleCopy -> cycle.nodes.forEach { cycleCopy.add(copyOf(it)) } } }
+            }
+        }
+        topSorted.forEach { node -> copy.nodes[node.path]?.let { copy.topSorted.add(it) } }
+        copy.redNodes.putAll(redNodes)
+        copy.processed = processed
+        copy.reachability = reachability?.copy()
+        return copy
     }
 
-    fun processYellow() {
-        topSorted.forEach { node ->
-            if (node._color == Color.RED) {
-                val redDeps = node.dependencies.filter { it._color == Color.RED }
-                if (redDeps.size == 1) {
-                    node.onlyRed = redDeps[0]
-                }
+    @Synchronized
+    fun node(path: String): Node? = nodes[path]
+
+    /**
+     * Whether [from] depends on [to] directly or transitively, see [ReachabilityIndex]. Nodes whose dependencies
+     * changed since the index was built are searched through their edges until the search enters indexed nodes.
+     */
+    @Synchronized
+    fun reaches(from: Node, to: Node): Boolean {
+        val reachability = reachability() ?: return false
+        val toId = reachability.idOf(to)
+        val fromId = reachability.idOf(from)
+        if (fromId >= 0) return toId >= 0 && reachability.index.reaches(fromId, toId)
+        val visited = HashSet<Node>()
+        val stack = ArrayDeque(from.dependencies)
+        while (stack.isNotEmpty()) {
+            val node = stack.removeLast()
+            if (node == to) return true
+            if (!visited.add(node)) continue
+            val id = reachability.idOf(node)
+            if (id < 0) {
+                stack.addAll(node.dependencies)
+            } else if (toId >= 0 && reachability.index.reaches(id, toId)) {
+                return true
             }
         }
-        topSorted.forEach { node ->
-            val onlyRed = node.onlyRed
-            if (onlyRed != null) {
-                redNodes[onlyRed.id] = (redNodes[onlyRed.id] ?: 0) + node.codeFile.size.toInt()
+        return false
+    }
+
+    /**
+     * Every node [node] depends on directly or transitively, including the other nodes of its cycle.
+     */
+    @Synchronized
+    fun transitiveDependencies(node: Node): List<Node> {
+        val reachability = reachability() ?: return emptyList()
+        val id = reachability.idOf(node)
+        if (id >= 0) return nodesOf(reachability, reachability.index.transitiveDependencies(id))
+        val cone = LinkedHashSet<Node>()
+        val queue = ArrayDeque(node.dependencies)
+        while (queue.isNotEmpty()) {
+            val dependency = queue.removeFirst()
+            if (!cone.add(dependency)) continue
+            val dependencyId = reachability.idOf(dependency)
+            if (dependencyId < 0) {
+                queue.addAll(dependency.dependencies)
+            } else {
+                cone.addAll(nodesOf(reachability, reachability.index.transitiveDependencies(dependencyId)))
             }
         }
+        cone.remove(node)
+        return cone.toList()
     }
 
-    private fun runDfs() {
-        for (node in nodes.values) {
-            node._color = Color.WHITE
+    /**
+     * Every node depending on [node] directly or transitively, including the other nodes of its cycle. Any node whose
+     * dependencies changed since the index was built may be a new dependent, so then the edges are searched instead.
+     */
+    @Synchronized
+    fun transitiveDependents(node: Node): List<Node> {
+        val reachability = reachability() ?: return emptyList()
+        val id = reachability.idOf(node)
+        if (id >= 0 && reachability.dirty.isEmpty()) return nodesOf(reachability, reachability.index.transitiveDependents(id))
+        val cone = dependentsCone(node.backwardDependencies)
+        cone.remove(node)
+        return cone.toList()
+    }
+
+    @Synchronized
+    fun transitiveDependencies(path: String): List<Node> = nodes[path]?.let { transitiveDependencies(it) } ?: emptyList()
+
+    @Synchronized
+    fun transitiveDependents(path: String): List<Node> = nodes[path]?.let { transitiveDependents(it) } ?: emptyList()
+
+    /**
+     * Recolors [seeds] and the nodes depending on them after green modules or red classes changed, see [reprocess].
+     *
+     * @return nodes whose color, depth or only red dependency changed
+     */
+    @Synchronized
+    fun updateMobility(config: GraphConfig, seeds: Collection<Node>): List<Node> {
+        if (!processed) return emptyList()
+        return reprocess(config, dependentsCone(seeds.filter { nodes[it.path] === it })).recolored
+    }
+
+    /**
+     * Patches the graph after [changed] files were analyzed again and [removed] paths were deleted. Dependencies of the
+     * changed files are looked up with [codeFileOf]. Nodes left without any dependency or dependent are dropped, the same
+     * as [asDependencyGraph] never adds them.
+     *
+     * Only the nodes whose edges changed and the nodes depending on them can change their cycles, colors or forward
+     * closure, so just this cone is reprocessed and marked as stale in the reachability index. The index is rebuilt on
+     * the next query once a quarter of the graph is stale.
+     */
+    @Synchronized
+    fun update(
+        config: GraphConfig,
+        changed: Collection<CodeFile>,
+        removed: Collection<String>,
+        codeFileOf: (String) -> CodeFile?
+    ): GraphUpdate {
+        if (!processed) return GraphUpdate(emptyList(), emptySet(), emptyList())
+        val pathFilter = config.pathFilter
+        val seeds = HashSet<Node>()
+        val touched = HashSet<Node>()
+        val added = HashSet<String>()
+        val removedNodes = mutableListOf<Node>()
+
+        fun touch(node: Node) {
+            touched.add(node)
+            node.cycle?.let { touched.addAll(it.nodes) }
         }
-        for (node in nodes.values) {
-            if (node._color == Color.WHITE) {
-                dfs(node)
+
+        fun disconnect(node: Node) {
+            node.dependencies.forEach {
+                it.backwardDependencies.remove(node)
+                touch(it)
             }
+            node.dependencies.clear()
         }
-    }
 
-    private fun dfs(node: Node) {
-        node._color = Color.GRAY
-        nodesInProcess.add(node)
-        for (dependentNode in node.dependencies) {
-            if (dependentNode._color == Color.WHITE) {
-                dfs(dependentNode)
-            } else if (dependentNode._color == Color.GRAY) {
-                val cycle = Cycle()
-                var i = nodesInProcess.size
-                do {
-                    i--
-                    nodesInProcess[i].cycle = cycle
-                    cycle.add(nodesInProcess[i])
-                } while (nodesInProcess[i] != dependentNode)
+        removed.forEach { path ->
+            val node = nodes.remove(path) ?: return@forEach
+            touch(node)
+            disconnect(node)
+            node.backwardDependencies.forEach {
+                it.dependencies.remove(node)
+                touch(it)
+                seeds.add(it)
             }
+            node.backwardDependencies.clear()
+            removedNodes.add(node)
+        }
+        changed.forEach { codeFile ->
+            if (pathFilter.isFiltered(codeFile)) return@forEach
+            val dependencies = codeFile.dependencies.mapNotNull(codeFileOf).filter { !pathFilter.isFiltered(it) }
+            val node = nodes[codeFile.path]
+            if (node == null && dependencies.isEmpty()) return@forEach
+            if (node != null) {
+                touch(node)
+                disconnect(node)
+                node.codeFile = codeFile
+            } else {
+                added.add(codeFile.path)
+            }
+            dependencies.forEach {
+                if (!nodes.containsKey(it.path)) added.add(it.path)
+                add(codeFile, it)
+            }
+            val updatedNode = nodes.getValue(codeFile.path)
+            seeds.add(updatedNode)
+            touch(updatedNode)
+            updatedNode.dependencies.forEach { touch(it) }
+        }
+        touched.filter { it.dependencies.isEmpty() && it.backwardDependencies.isEmpty() && nodes[it.path] === it }.forEach {
+            nodes.remove(it.path)
+            removedNodes.add(it)
+        }
+        added.forEach { path -> nodes[path]?.let { seeds.add(it) } }
+
+        val region = dependentsCone(seeds)
+        val reprocessed = reprocess(config, region)
+        reachability?.let { reachability ->
+            region.forEach { reachability.dirty.add(it.path) }
+            if (reachability.dirty.size > nodes.size / 4) this.reachability = null
         }
-        node._color = Color.BLACK
-        nodesInProcess.remove(node)
-        topSorted.add(node)
+        touched.addAll(reprocessed.cycleChanged)
+        touched.removeAll(removedNodes.toSet())
+        return GraphUpdate(reprocessed.recolored, touched, removedNodes)
     }
 
-    private fun analyzeMobility(config: GraphConfig) {
-        topSorted.forEach { node ->
+    /**
+     * Finds the cycles of [region] again and recolors it with the same rules as [CsrGraph.process]. A cycle through a
+     * node of [region] lies wholly in it, as every other node of the cycle depends on that node, so Tarjan only runs on
+     * [region] and its components come out in the topological order mobility needs. Nodes outside of [region] don't
+     * depend on it and keep their results.
+     */
+    private fun reprocess(config: GraphConfig, region: Set<Node>): Reprocessed {
+        val previous = region.associateWith { NodeState(it) }
+        region.forEach { node ->
+            node.onlyRed?.let { addRedSize(it, -node.codeFile.size.toInt()) }
             node._color = Color.WHITE
-
-            if (!config.greenModules.contains(node.codeFile.module) || node.cycle != null || config.redClasses.contains(node.codeFile.className)) {
-                markAsRed(node)
-            } else if (node.dependencies.isEmpty()) {
-                node._color = Color.GREEN
-                node.depth = 0
-            } else if (node.dependencies.all { it._color == Color.GREEN }) {
-                node._color = Color.GREEN
-                node.depth = node.dependencies.maxByOrNull { it.depth }!!.depth + 1
-            } else {
-                markAsRed(node)
+            node.onlyRed = null
+            node.cycle = null
+        }
+        val cycleChanged = mutableListOf<Node>()
+        stronglyConnectedComponents(region).forEach { members ->
+            val first = members[0]
+            if (members.size > 1 || first.dependencies.contains(first)) {
+                val cycle = Cycle()
+                members.forEach {
+                    cycle.add(it)
+                    it.cycle = cycle
+                }
+                val previousCycle = previous.getValue(first).cycle
+                if (previousCycle == null || previousCycle.nodes.size != members.size ||
+                    members.any { previous.getValue(it).cycle !== previousCycle }
+                ) {
+                    cycleChanged.addAll(members)
+                }
             }
+            members.forEach { analyzeMobility(it, config) }
+        }
+        region.forEach { node ->
+            processYellow(node)
+            node.onlyRed?.let { addRedSize(it, node.codeFile.size.toInt()) }
+        }
+        region.forEach { if (it.cycle == null && previous.getValue(it).cycle != null) cycleChanged.add(it) }
+        val recolored = region.filter { node ->
+            val state = previous.getValue(node)
+            node.color != state.color || node.depth != state.depth || node.onlyRed !== state.onlyRed ||
+                (node.cycle == null) != (state.cycle == null)
         }
+        return Reprocessed(recolored, cycleChanged)
     }
 
-    private fun markAsRed(node: Node) {
-        node._color = Color.RED
-        if (node.dependencies.isEmpty()) {
+    private fun analyzeMobility(node: Node, config: GraphConfig) {
+        val codeFile = node.codeFile
+        val dependencies = node.dependencies
+        if (!config.greenModules.contains(codeFile.module) || node.cycle != null || config.redClasses.contains(codeFile.className)) {
+            markAsRed(node)
+        } else if (dependencies.isEmpty()) {
+            node._color = Color.GREEN
             node.depth = 0
+        } else if (dependencies.all { it.color == Color.GREEN }) {
+            node._color = Color.GREEN
+            node.depth = dependencies.maxOf { it.depth } + 1
         } else {
-            node.depth =
-                node.dependencies.filter { it._color == Color.RED }.maxByOrNull { it.depth }?.depth?.plus(1) ?: 0
+            markAsRed(node)
         }
     }
+
+    private fun markAsRed(node: Node) {
+        node._color = Color.RED
+        node.depth = (node.dependencies.filter { it.color == Color.RED }.maxOfOrNull { it.depth } ?: -1) + 1
+    }
+
+    private fun processYellow(node: Node) {
+        if (node.color != Color.RED) return
+        val redDependencies = node.dependencies.filter { it.color == Color.RED }
+        if (redDependencies.size == 1) node.onlyRed = redDependencies[0]
+    }
+
+    /**
+     * Tarjan's strongly connected components of the subgraph induced by [region], with explicit stacks as in [CsrGraph].
+     * Components are returned with dependencies first.
+     */
+    private fun stronglyConnectedComponents(region: Collection<Node>): List<List<Node>> {
+        val regionNodes = region.toList()
+        val ids = HashMap<Node, Int>(regionNodes.size * 2)
+        regionNodes.forEachIndexed { id, node -> ids[node] = id }
+        val index = IntArray(regionNodes.size) { -1 }
+        val lowLink = IntArray(regionNodes.size)
+        val onStack = BooleanArray(regionNodes.size)
+        val edges = arrayOfNulls<Iterator<Node>>(regionNodes.size)
+        val componentStack = IntArrayList()
+        val callStack = IntArrayList()
+        val components = mutableListOf<List<Node>>()
+        var nextIndex = 0
+
+        fun visit(id: Int) {
+            index[id] = nextIndex
+            lowLink[id] = nextIndex++
+            componentStack.add(id)
+            onStack[id] = true
+            callStack.add(id)
+            edges[id] = regionNodes[id].dependencies.iterator()
+        }
+
+        for (start in regionNodes.indices) {
+            if (index[start] >= 0) continue
+            visit(start)
+            while (!callStack.isEmpty()) {
+                val id = callStack.getInt(callStack.size - 1)
+                val iterator = edges[id]!!
+                if (iterator.hasNext()) {
+                    val dependency = ids[iterator.next()] ?: continue
+                    if (index[dependency] < 0) {
+                        visit(dependency)
+                    } else if (onStack[dependency] && index[dependency] < lowLink[id]) {
+                        lowLink[id] = index[dependency]
+                    }
+                    continue
+                }
+                callStack.removeInt(callStack.size - 1)
+                edges[id] = null
+                if (lowLink[id] == index[id]) {
+                    val members = mutableListOf<Node>()
+                    do {
+                        val member = componentStack.removeInt(componentStack.size - 1)
+                        onStack[member] = false
+                        members.add(regionNodes[member])
+                    } while (member != id)
+                    components.add(members)
+                }
+                if (!callStack.isEmpty()) {
+                    val parent = callStack.getInt(callStack.size - 1)
+                    if (lowLink[id] < lowLink[parent]) lowLink[parent] = lowLink[id]
+                }
+            }
+        }
+        return components
+    }
+
+    private fun dependentsCone(seeds: Collection<Node>): MutableSet<Node> {
+        val cone = HashSet<Node>()
+        val queue = ArrayDeque<Node>()
+        seeds.forEach { if (cone.add(it)) queue.add(it) }
+        while (queue.isNotEmpty()) {
+            queue.removeFirst().backwardDependencies.forEach { if (cone.add(it)) queue.add(it) }
+        }
+        return cone
+    }
+
+    private fun reachability(): Reachability? {
+        if (!processed) return null
+        return reachability ?: run {
+            val csrGraph = CsrGraph.fromDependencyGraph(this)
+            csrGraph.processStructure()
+            Reachability(csrGraph).also { reachability = it }
+        }
+    }
+
+    private fun nodesOf(reachability: Reachability, ids: IntArray): List<Node> =
+        ids.mapNotNull { nodes[reachability.csrGraph.path(it)] }
+
+    private fun addRedSize(node: Node, size: Int) {
+        val newSize = (redNodes[node.id] ?: 0) + size
+        if (newSize == 0) redNodes.remove(node.id) else redNodes[node.id] = newSize
+    }
+
+    fun getNodeByClass(name: String): Node {
+        return topSorted.find { it.codeFile.className.contains(name) } ?: Node(
+            CodeFile(
+                "EMPTY"
+            )
+        )
+    }
+
+    private fun apply(csrGraph: CsrGraph, nodeList: List<Node>) {
+        val cycles = Array(csrGraph.cycleCount) { cycleId ->
+            val cycle = Cycle()
+            csrGraph.cycle(cycleId).forEach { cycle.add(nodeList[it]) }
+            cycle
+        }
+        nodeList.forEachIndexed { id, node ->
+            node._color = csrGraph.color(id)
+            node.depth = csrGraph.depth(id)
+            node.cycle = csrGraph.cycleId(id).let { if (it >= 0) cycles[it] else null }
+            node.onlyRed = csrGraph.onlyRed(id).let { if (it >= 0) nodeList[it] else null }
+        }
+        topSorted.clear()
+        csrGraph.topSorted().forEach { topSorted.add(nodeList[it]) }
+        redNodes.clear()
+        redNodes.putAll(csrGraph.redNodes())
+    }
 }
+
+/**
+ * Result of [DependencyGraph.update].
+ *
+ * @property recolored nodes whose color, depth, only red dependency or cycle membership changed
+ * @property touched nodes whose dependencies, dependents or cycle may have changed
+ * @property removed nodes which are no longer part of the graph
+ */
+class GraphUpdate(val recolored: List<Node>, val touched: Set<Node>, val removed: List<Node>)
+
+/**
+ * Index of the graph as it was when the index was built, together with the paths of the nodes whose forward closure
+ * may have changed since. Those nodes and nodes new to the graph have no valid id.
+ */
+private class Reachability(
+    val csrGraph: CsrGraph,
+    val index: ReachabilityIndex = ReachabilityIndex(csrGraph),
+    val dirty: MutableSet<String> = HashSet()
+) {
+    fun idOf(node: Node) = if (node.path in dirty) -1 else csrGraph.idOf(node.path)
+
+    fun copy() = Reachability(csrGraph, index, HashSet(dirty))
+}
+
+private class NodeState(node: Node) {
+    val color = node.color
+    val depth = node.depth
+    val onlyRed = node.onlyRed
+    val cycle = node.cycle
+}
+
+private class Reprocessed(val recolored: List<Node>, val cycleChanged: List<Node>)
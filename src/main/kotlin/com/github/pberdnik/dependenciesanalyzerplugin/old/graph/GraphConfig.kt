@@ -1,20 +1,78 @@
 package com.github.pberdnik.dependenciesanalyzerplugin.old.graph
 
+import com.github.pberdnik.dependenciesanalyzerplugin.storage.GraphConfigState
 import com.github.pberdnik.dependenciesanalyzerplugin.storage.GraphConfigStorageService
 import com.intellij.openapi.project.Project
 import com.intellij.openapi.project.guessProjectDir
+import com.intellij.openapi.util.SimpleModificationTracker
 
 class GraphConfig(
-    val project: Project
+    val projectDir: String,
+    val graphConfigState: GraphConfigState,
+    private val filterRulesTracker: SimpleModificationTracker = SimpleModificationTracker()
 ) {
-    val projectDir: String = project.guessProjectDir()?.path ?: ""
+    constructor(project: Project) : this(
+        project.guessProjectDir()?.path ?: "",
+        GraphConfigStorageService.getInstance(project).state,
+        GraphConfigStorageService.getInstance(project).filterRulesTracker
+    )
 
-    val graphConfigState = GraphConfigStorageService.getInstance(project).state
-
-    var filteredModules = mutableSetOf<String>()
-    var filteredClasses = mutableSetOf<String>()
+    val filteredModules: Set<String> get() = graphConfigState.filteredModules
+    val filteredClasses: Set<String> get() = graphConfigState.filteredClasses
 
     val greenModules get() = graphConfigState.greenModules
     var greenClasses = mutableSetOf<String>()
-    var redClasses = mutableSetOf<String>()
-}
\ No newline at end of file
+
+    /**
+     * Classes which are never mobile. Replaced as a whole, so analyses reading it never see it half changed.
+     */
+    @Volatile
+    var redClasses: Set<String> = emptySet()
+
+    private class CompiledPathFilter(val rulesVersion: Long, val pathFilter: PathFilter)
+
+    @Volatile
+    private var compiledPathFilter: CompiledPathFilter? = null
+
+    /**
+     * Adds [classes] to the filtered classes. Filter rules are changed only through here or by loading the settings, so
+     * [pathFilter] knows when to compile them again.
+     */
+    fun addFilteredClasses(classes: Collection<String>) {
+        synchronized(this) {
+            graphConfigState.filteredClasses = HashSet(graphConfigState.filteredClasses).apply { addAll(classes) }
+        }
+        filterRulesTracker.incModificationCount()
+    }
+
+    /**
+     * Filter rules compiled for matching. The rules are read and compiled again only after they changed, otherwise this
+     * is a check of the rules version. Take it once per pass over the graph.
+     */
+    val pathFilter: PathFilter
+        get() {
+            val rulesVersion = filterRulesTracker.modificationCount
+            compiledPathFilter?.let { if (it.rulesVersion == rulesVersion) return it.pathFilter }
+            synchronized(this) {
+                val compiled = compiledPathFilter
+                if (compiled != null && compiled.rulesVersion == rulesVersion) return compiled.pathFilter
+                val rules = PathFilter.Rules(
+                    graphConfigState.filteredClasses.toSet(),
+                    graphConfigState.filteredClassPrefixes.toSet(),
+                    graphConfigState.filteredPathPatterns.toList(),
+                    graphConfigState.filteredModules.toSet()
+                )
+                val pathFilter = compiled?.pathFilter?.takeIf { it.rules == rules } ?: PathFilter(rules)
+                compiledPathFilter = CompiledPathFilter(rulesVersion, pathFilter)
+                return pathFilter
+            }
+        }
+
+    /**
+     * Settings the stored dependencies of files depend on. Dependencies on filtered files are dropped before they are
+     * stored, and fast mode finds fewer dependencies than full resolution, so dependencies stored with other filter
+     * rules or in the other mode can't be reused.
+     */
+    fun analysisFingerprint(pathFilter: PathFilter = this.pathFilter, fastMode: Boolean = graphConfigState.fastMode) =
+        "rules=${pathFilter.rules.fingerprint};fast=$fastMode"
+}
@@ -2,7 +2,9 @@ package com.github.pberdnik.dependenciesanalyzerplugin.old.graph
 
 import com.github.pberdnik.dependenciesanalyzerplugin.old.file.CodeFile
 
-class Node(val codeFile: CodeFile) {
+class Node(codeFile: CodeFile) {
+    var codeFile: CodeFile = codeFile
+        internal set
     val id: String = codeFile.path
     val path: String = codeFile.path
 
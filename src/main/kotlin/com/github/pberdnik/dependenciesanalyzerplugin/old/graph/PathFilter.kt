@@ -0,0 +1,183 @@
+package com.github.pberdnik.dependenciesanalyzerplugin.old.graph
+
+import com.github.pberdnik.dependenciesanalyzerplugin.old.file.CodeFile
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+private const val REGEX_PREFIX = "regex:"
+private const val UNKNOWN: Byte = 0
+private const val KEPT: Byte = 1
+private const val FILTERED: Byte = 2
+
+/**
+ * Filter rules of [GraphConfig] compiled for matching: path suffixes into a trie of reversed suffixes, name prefixes into
+ * a prefix trie and path patterns into one alternation. Joining patterns renumbers their groups and puts their group
+ * names side by side, so patterns with backreferences or named groups are compiled on their own. Each path is matched once, later checks of the same path,
+ * for every edge pointing to it, read its verdict from an array indexed by the id of [PathIds], one byte per path
+ * instead of a map entry. A [CodeFile] keeps its id, so checking it again doesn't even hash its path.
+ */
+class PathFilter(val rules: Rules) {
+    data class Rules(
+        val suffixes: Set<String>,
+        val classPrefixes: Set<String>,
+        val pathPatterns: List<String>,
+        val modules: Set<String>
+    ) {
+        /**
+         * Hash of the rules which doesn't depend on the order of their sets, so it can be stored and compared later.
+         */
+        val fingerprint: String
+            get() = listOf(suffixes.sorted(), classPrefixes.sorted(), pathPatterns, modules.sorted())
+                .joinToString("\n") { it.joinToString("\t") }
+                .hashCode()
+                .let { Integer.toHexString(it) }
+    }
+
+    private val suffixTrie = CharTrie(rules.suffixes.map { it.reversed() })
+    private val classPrefixTrie = CharTrie(rules.classPrefixes)
+    private val pathPattern: Regex?
+    private val separatePathPatterns: List<Regex>
+
+    init {
+        val (separate, joined) = rules.pathPatterns.map { it.toRegexSource() }.partition { it.hasGroupReferences() }
+        pathPattern = joined.takeIf { it.isNotEmpty() }?.joinToString("|") { "(?:$it)" }?.toRegex()
+        separatePathPatterns = separate.map { it.toRegex() }
+    }
+
+    @Volatile
+    private var verdicts = ByteArray(0)
+
+    fun isFiltered(codeFile: CodeFile): Boolean {
+        var id = codeFile.pathId
+        if (id < 0) {
+            id = PathIds.idOf(codeFile.path)
+            codeFile.pathId = id
+        }
+        return isFiltered(id) { match(codeFile.path, codeFile.className, codeFile.module) }
+    }
+
+    fun isFiltered(path: String, className: String, module: String): Boolean =
+        isFiltered(PathIds.idOf(path)) { match(path, className, module) }
+
+    /**
+     * Verdicts are read without locking: a verdict missed in a stale array is only matched again.
+     */
+    private inline fun isFiltered(id: Int, match: () -> Boolean): Boolean {
+        val verdicts = verdicts
+        val known = if (id < verdicts.size) verdicts[id] else UNKNOWN
+        if (known != UNKNOWN) return known == FILTERED
+        val verdict = match()
+        setVerdict(id, if (verdict) FILTERED else KEPT)
+        return verdict
+    }
+
+    @Synchronized
+    private fun setVerdict(id: Int, verdict: Byte) {
+        if (id >= verdicts.size) verdicts = verdicts.copyOf(maxOf(id + 1, verdicts.size * 2, 1024))
+        verdicts[id] = verdict
+    }
+
+    private fun match(path: String, className: String, module: String): Boolean {
+        if (path.contains("\$USER_HOME\$")) return true
+        if (rules.modules.contains(module)) return true
+        if (suffixTrie.matchesSuffixOf(path)) return true
+        if (classPrefixTrie.matchesPrefixOf(className)) return true
+        if (pathPattern?.matches(path) == true) return true
+        return separatePathPatterns.any { it.matches(path) }
+    }
+}
+
+/**
+ * Dense ids of paths, shared by all filters, so a path keeps its id when the rules change and only the verdicts are
+ * computed again, and a [CodeFile] can keep its id. Looked up without locking.
+ */
+object PathIds {
+    private val ids = ConcurrentHashMap<String, Int>()
+    private val nextId = AtomicInteger()
+
+    fun idOf(path: String): Int = ids[path] ?: ids.computeIfAbsent(path) { nextId.getAndIncrement() }
+}
+
+private fun String.toRegexSource(): String {
+    if (startsWith(REGEX_PREFIX)) return substring(REGEX_PREFIX.length)
+    val regex = StringBuilder()
+    var i = 0
+    while (i < length) {
+        when (val c = this[i]) {
+            '*' -> if (i + 1 < length && this[i + 1] == '*') {
+                regex.append(".*")
+                i++
+            } else {
+                regex.append("[^/]*")
+            }
+            '?' -> regex.append("[^/]")
+            else -> regex.append(Regex.escape(c.toString()))
+        }
+        i++
+    }
+    return regex.toString()
+}
+
+/**
+ * Whether the regex refers to its groups by number or defines named ones, outside of escapes. A lookbehind starts like
+ * a named group, but isn't one.
+ */
+private fun String.hasGroupReferences(): Boolean {
+    var i = 0
+    while (i < length) {
+        when (this[i]) {
+            '\\' -> {
+                val next = getOrNull(i + 1)
+                if (next != null && (next in '1'..'9' || next == 'k')) return true
+                i++
+            }
+            '(' -> if (startsWith("(?<", i) && getOrNull(i + 3)?.isLetter() == true) return true
+        }
+        i++
+    }
+    return false
+}
+
+/**
+ * Set of words matched against the start or the end of a string in one pass over its characters.
+ */
+private class CharTrie(words: Collection<String>) {
+    private class TrieNode {
+        val children = HashMap<Char, TrieNode>()
+        var isWord = false
+    }
+
+    private val root = TrieNode()
+    private val isEmpty = words.isEmpty()
+
+    init {
+        words.forEach { word ->
+            var node = root
+            word.forEach { c -> node = node.children.getOrPut(c) { TrieNode() } }
+            node.isWord = true
+        }
+    }
+
+    fun matchesPrefixOf(s: String): Boolean {
+        if (isEmpty) return false
+        var node = root
+        for (c in s) {
+            if (node.isWord) return true
+            node = node.children[c] ?: return false
+        }
+        return node.isWord
+    }
+
+    /**
+     * Words are stored reversed, so the string is walked from its end.
+     */
+    fun matchesSuffixOf(s: String): Boolean {
+        if (isEmpty) return false
+        var node = root
+        for (i in s.length - 1 downTo 0) {
+            if (node.isWord) return true
+            node = node.children[s[i]] ?: return false
+        }
+        return node.isWord
+    }
+}
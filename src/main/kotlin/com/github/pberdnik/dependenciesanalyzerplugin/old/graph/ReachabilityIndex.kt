@@ -0,0 +1,176 @@
+package com.github.pberdnik.dependenciesanalyzerplugin.old.graph
+
+import it.unimi.dsi.fastutil.ints.IntArrayList
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet
+import java.util.*
+
+private const val LABELINGS = 3
+private const val MAX_CACHED_CONES = 64
+
+/**
+ * Transitive dependency queries over the condensation of a processed [CsrGraph]. All files of a cycle reach each other,
+ * so queries are answered per component.
+ *
+ * Every component gets [LABELINGS] intervals from depth-first traversals in different random orders: if a component
+ * reaches another one, its intervals contain the intervals of the other one. Most negative [reaches] queries are
+ * answered by the intervals or by the topological numbering of components alone, the others by a search which skips
+ * every component whose intervals rule the target out. Cones of [transitiveDependencies] and [transitiveDependents]
+ * are collected by a breadth-first search and the last [MAX_CACHED_CONES] of them are kept.
+ *
+ * Memory is linear in the size of the condensation, unlike a full closure matrix.
+ */
+class ReachabilityIndex(private val graph: CsrGraph) {
+    private val componentCount = graph.componentCount
+    private val forwardOffsets = IntArray(componentCount + 1)
+    private val forwardTargets: IntArray
+    private val backwardOffsets = IntArray(componentCount + 1)
+    private val backwardTargets: IntArray
+    private val ranks = Array(LABELINGS) { IntArray(componentCount) }
+    private val lows = Array(LABELINGS) { IntArray(componentCount) }
+    private val cones = object : LinkedHashMap<Long, IntArray>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Long, IntArray>) = size > MAX_CACHED_CONES
+    }
+
+    init {
+        val targets = IntArrayList()
+        for (component in 0 until componentCount) {
+            graph.componentDependencies(component).forEach { targets.add(it) }
+            forwardOffsets[component + 1] = targets.size
+        }
+        forwardTargets = targets.toIntArray()
+        for (target in forwardTargets) backwardOffsets[target + 1]++
+        for (component in 0 until componentCount) backwardOffsets[component + 1] += backwardOffsets[component]
+        backwardTargets = IntArray(forwardTargets.size)
+        val fill = backwardOffsets.copyOf(componentCount)
+        for (component in 0 until componentCount) {
+            for (e in forwardOffsets[component] until forwardOffsets[component + 1]) {
+                backwardTargets[fill[forwardTargets[e]]++] = component
+            }
+        }
+        val random = Random(componentCount.toLong())
+        for (labeling in 0 until LABELINGS) label(ranks[labeling], lows[labeling], random)
+    }
+
+    /**
+     * Whether file [from] depends on file [to] directly or transitively. A file reaches itself only through a cycle.
+     */
+    fun reaches(from: Int, to: Int): Boolean {
+        val fromComponent = graph.componentId(from)
+        val toComponent = graph.componentId(to)
+        if (fromComponent == toComponent) return from != to || graph.cycleId(from) >= 0
+        if (!mayReach(fromComponent, toComponent)) return false
+        val visited = IntOpenHashSet()
+        val stack = IntArrayList()
+        stack.add(fromComponent)
+        visited.add(fromComponent)
+        while (!stack.isEmpty()) {
+            val component = stack.removeInt(stack.size - 1)
+            for (e in forwardOffsets[component] until forwardOffsets[component + 1]) {
+                val dependency = forwardTargets[e]
+                if (dependency == toComponent) return true
+                if (mayReach(dependency, toComponent) && visited.add(dependency)) stack.add(dependency)
+            }
+        }
+        return false
+    }
+
+    /**
+     * Ids of all files [id] depends on directly or transitively, including the other files of its cycle.
+     */
+    fun transitiveDependencies(id: Int): IntArray = cone(id, forwardOffsets, forwardTargets, 0)
+
+    /**
+     * Ids of all files depending on [id] directly or transitively, including the other files of its cycle.
+     */
+    fun transitiveDependents(id: Int): IntArray = cone(id, backwardOffsets, backwardTargets, 1)
+
+    private fun cone(id: Int, offsets: IntArray, targets: IntArray, direction: Int): IntArray {
+        val start = graph.componentId(id)
+        val key = start.toLong() shl 1 or direction.toLong()
+        val components = synchronized(cones) { cones[key] } ?: run {
+            val visited = IntOpenHashSet()
+            val queue = IntArrayList()
+            queue.add(start)
+            visited.add(start)
+            var head = 0
+            while (head < queue.size) {
+                val component = queue.getInt(head++)
+                for (e in offsets[component] until offsets[component + 1]) {
+                    if (visited.add(targets[e])) queue.add(targets[e])
+                }
+            }
+            queue.toIntArray().also { synchronized(cones) { cones[key] = it } }
+        }
+        val result = IntArrayList()
+        components.forEach { component -> graph.componentMembers(component).forEach { if (it != id) result.add(it) } }
+        return result.toIntArray()
+    }
+
+    /**
+     * False if [from] can't reach [to]. Dependencies always have smaller component ids, and a reachable component has
+     * its intervals inside the intervals of every component reaching it.
+     */
+    private fun mayReach(from: Int, to: Int): Boolean {
+        if (to > from) return false
+        for (labeling in 0 until LABELINGS) {
+            val rank = ranks[labeling]
+            val low = lows[labeling]
+            if (low[to] < low[from] || rank[to] > rank[from]) return false
+        }
+        return true
+    }
+
+    /**
+     * Post-order ranks of an iterative depth-first traversal with shuffled start and child order, and for every component
+     * the lowest rank of the components it reaches.
+     */
+    private fun label(rank: IntArray, low: IntArray, random: Random) {
+        val visited = BooleanArray(componentCount)
+        val order = IntArray(componentCount) { it }
+        shuffle(order, 0, componentCount, random)
+        val children = forwardTargets.copyOf()
+        for (component in 0 until componentCount) {
+            shuffle(children, forwardOffsets[component], forwardOffsets[component + 1], random)
+        }
+        val stack = IntArray(componentCount)
+        val nextEdge = IntArray(componentCount)
+        var nextRank = 0
+        for (root in order) {
+            if (visited[root]) continue
+            var top = 0
+            stack[0] = root
+            nextEdge[0] = forwardOffsets[root]
+            visited[root] = true
+            low[root] = Int.MAX_VALUE
+            while (top >= 0) {
+                val component = stack[top]
+                if (nextEdge[top] < forwardOffsets[component + 1]) {
+                    val child = children[nextEdge[top]++]
+                    if (!visited[child]) {
+                        visited[child] = true
+                        low[child] = Int.MAX_VALUE
+                        top++
+                        stack[top] = child
+                        nextEdge[top] = forwardOffsets[child]
+                    } else if (low[child] < low[component]) {
+                        low[component] = low[child]
+                    }
+                    continue
+                }
+                rank[component] = nextRank++
+                if (rank[component] < low[component]) low[component] = rank[component]
+                top--
+                if (top >= 0 && low[component] < low[stack[top]]) low[stack[top]] = low[component]
+            }
+        }
+    }
+
+    private fun shuffle(array: IntArray, from: Int, to: Int, random: Random) {
+        for (i in to - 1 downTo from + 1) {
+            val j = from + random.nextInt(i - from + 1)
+            val tmp = array[i]
+            array[i] = array[j]
+            array[j] = tmp
+        }
+    }
+}
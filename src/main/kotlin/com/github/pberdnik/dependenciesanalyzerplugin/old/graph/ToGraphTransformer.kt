@@ -4,11 +4,12 @@ import com.github.pberdnik.dependenciesanalyzerplugin.old.file.CodeFile
 
 fun asDependencyGraph(codeFiles: MutableMap<String, CodeFile>, config: GraphConfig): DependencyGraph {
     val graph = DependencyGraph()
+    val pathFilter = config.pathFilter
     codeFiles.forEach { (_, codeFile) ->
-        if (!codeFile.isBad(config)) {
+        if (!pathFilter.isFiltered(codeFile)) {
             codeFile.dependencies.forEach { dependentCodeFilePath ->
                 val dependentCodeFile = codeFiles[dependentCodeFilePath]
-                if (dependentCodeFile != null && !dependentCodeFile.isBad(config)) {
+                if (dependentCodeFile != null && !pathFilter.isFiltered(dependentCodeFile)) {
                     graph.add(codeFile, dependentCodeFile)
                 }
             }
@@ -16,15 +17,3 @@ fun asDependencyGraph(codeFiles: MutableMap<String, CodeFile>, config: GraphConf
     }
     return graph
 }
-
-private fun CodeFile.isBad(config: GraphConfig): Boolean {
-    val path = path
-    if (path.contains("\$USER_HOME\$")) return true
-    config.filteredClasses.forEach { if (path.endsWith(it)) return true }
-
-    if (config.filteredModules.contains(module)) return true
-    if (className.startsWith("Whetstone")) return true
-    if (className.startsWith("Dagger")) return true
-
-    return false
-}
\ No newline at end of file
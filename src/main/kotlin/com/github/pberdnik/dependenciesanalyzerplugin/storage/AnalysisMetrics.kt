@@ -0,0 +1,174 @@
+package com.github.pberdnik.dependenciesanalyzerplugin.storage
+
+import com.google.gson.GsonBuilder
+import com.intellij.ide.plugins.PluginManagerCore
+import com.intellij.openapi.extensions.PluginId
+import com.intellij.util.messages.Topic
+import java.lang.management.ManagementFactory
+import java.util.*
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.LongAdder
+
+private const val SLOWEST_FILES = 50
+private const val PLUGIN_ID = "com.github.pberdnik.dependenciesanalyzerplugin"
+
+private val threadMXBean = (ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean)
+    ?.takeIf { it.isThreadAllocatedMemorySupported && it.isThreadAllocatedMemoryEnabled }
+
+/**
+ * Named timers and counters of one analysis run, from visiting files to building node views. Safe to use from several
+ * threads.
+ *
+ * A phase sums the time and the bytes allocated by every thread measuring it, so phases running on several threads at
+ * once can take longer than the whole run. Allocation is measured per thread and only where the JVM supports it.
+ */
+class AnalysisMetrics {
+    private val startedAt = System.currentTimeMillis()
+    private val start = System.nanoTime()
+    private val phases = Collections.synchronizedMap(LinkedHashMap<String, Phase>())
+    private val slowestFiles = PriorityQueue<FileStats>(compareBy { it.resolveMillis })
+
+    val filesCount = LongAdder()
+    val edgesCount = LongAdder()
+
+    private class Phase {
+        val nanos = LongAdder()
+        val allocatedBytes = LongAdder()
+        val count = LongAdder()
+    }
+
+    /**
+     * Measurement of the calling thread started by [start], added to a phase by [stop].
+     */
+    inner class Measurement internal constructor() {
+        private val startNanos = System.nanoTime()
+        private val startBytes = allocatedBytes()
+
+        /**
+         * Adds the time and allocation since [start] to [phase].
+         *
+         * @return time since [start] in nanoseconds
+         */
+        fun stop(phase: String): Long {
+            val nanos = System.nanoTime() - startNanos
+            record(phase, nanos, allocatedBytes() - startBytes)
+            return nanos
+        }
+    }
+
+    fun start() = Measurement()
+
+    fun record(phase: String, nanos: Long, allocatedBytes: Long) {
+        val stats = phases[phase] ?: synchronized(phases) { phases.getOrPut(phase) { Phase() } }
+        stats.nanos.add(nanos)
+        stats.allocatedBytes.add(allocatedBytes)
+        stats.count.increment()
+    }
+
+    /**
+     * Slow files excluded from later analyses after this run, see [GraphStorageService.excludeSlowFiles].
+     */
+    @Volatile
+    var excludedFiles: List<String> = emptyList()
+
+    /**
+     * Counts an analyzed file with [edges] dependencies found through [references] resolved references. The slowest
+     * [SLOWEST_FILES] files to resolve are kept in a min-heap, so a file only costs a comparison with the fastest of them.
+     */
+    fun fileAnalyzed(path: String, edges: Int, references: Int, resolveNanos: Long) {
+        filesCount.increment()
+        edgesCount.add(edges.toLong())
+        val file = FileStats(path, resolveNanos / 1e6, references, edges)
+        synchronized(slowestFiles) {
+            if (slowestFiles.size < SLOWEST_FILES) {
+                slowestFiles.add(file)
+            } else if (slowestFiles.peek().resolveMillis < file.resolveMillis) {
+                slowestFiles.poll()
+                slowestFiles.add(file)
+            }
+        }
+    }
+
+    /**
+     * Files which took longest to resolve so far, slowest first.
+     */
+    fun slowestFiles(): List<FileStats> = synchronized(slowestFiles) { slowestFiles.sortedByDescending { it.resolveMillis } }
+
+    /**
+     * Stats of the run so far. Files per second are counted over [VISITATION] if it was measured.
+     */
+    fun stats(): AnalysisStats {
+        val wallMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+        val phaseStats = synchronized(phases) {
+            phases.map { (name, phase) -> PhaseStats(name, phase.nanos.sum() / 1e6, phase.count.sum(), phase.allocatedBytes.sum()) }
+        }
+        val visitationMillis = phaseStats.firstOrNull { it.name == VISITATION }?.millis ?: wallMillis.toDouble()
+        val filesCount = filesCount.sum()
+        return AnalysisStats(
+            PluginManagerCore.getPlugin(PluginId.getId(PLUGIN_ID))?.version ?: "",
+            startedAt,
+            wallMillis,
+            filesCount,
+            edgesCount.sum(),
+            if (visitationMillis > 0) filesCount * 1000 / visitationMillis else 0.0,
+            phaseStats,
+            slowestFiles(),
+            excludedFiles
+        )
+    }
+
+    companion object {
+        const val VISITATION = "PSI visitation"
+        const val RESOLUTION = "Reference resolution"
+        const val IMPORT_EXTRACTION = "Import extraction"
+        const val DROP_RESOLVE_CACHES = "Resolve cache drop"
+        const val CONVERSION = "Conversion"
+        const val GRAPH_SAVE = "Graph save"
+        const val GRAPH_BUILDING = "Graph building"
+        const val CYCLES = "Cycles"
+        const val MOBILITY = "Mobility"
+        const val YELLOW = "Yellow"
+        const val NODE_VIEWS = "Node views"
+        const val DEPENDENCY_FILES = "Dependency lists"
+
+        @JvmField
+        val TOPIC = Topic.create("Dependencies analysis stats", AnalysisStatsListener::class.java)
+
+        private fun allocatedBytes() = threadMXBean?.currentThreadAllocatedBytes ?: 0L
+    }
+}
+
+/**
+ * Measures [block] as [phase] of these metrics, or just runs it without metrics.
+ */
+inline fun <T> AnalysisMetrics?.measure(phase: String, block: () -> T): T {
+    if (this == null) return block()
+    val measurement = start()
+    try {
+        return block()
+    } finally {
+        measurement.stop(phase)
+    }
+}
+
+fun interface AnalysisStatsListener {
+    fun statsPublished(stats: AnalysisStats)
+}
+
+class AnalysisStats(
+    val pluginVersion: String,
+    val startedAt: Long,
+    val wallMillis: Long,
+    val filesCount: Long,
+    val edgesCount: Long,
+    val filesPerSecond: Double,
+    val phases: List<PhaseStats>,
+    val slowestFiles: List<FileStats>,
+    val excludedFiles: List<String>
+) {
+    fun toJson(): String = GsonBuilder().setPrettyPrinting().create().toJson(this)
+}
+
+class PhaseStats(val name: String, val millis: Double, val count: Long, val allocatedBytes: Long)
+
+class FileStats(val path: String, val resolveMillis: Double, val references: Int, val dependencies: Int)
@@ -0,0 +1,134 @@
+package com.github.pberdnik.dependenciesanalyzerplugin.storage
+
+import com.github.pberdnik.dependenciesanalyzerplugin.old.file.CodeFile
+import java.io.BufferedOutputStream
+import java.io.DataOutputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+
+/**
+ * Compact binary form of the stored graph.
+ *
+ * Layout (big-endian):
+ * ```
+ * magic, version, stringCount, int[stringCount] string offsets, fileCount, int[fileCount] record offsets
+ * strings: byteLength, UTF-8 bytes
+ * records: pathId, moduleId, classNameId, size: long, stamp: long, flags | dependencyCount, int[dependencyCount] pathIds
+ * ```
+ * Paths, modules and class names are interned into one string table, dependencies reference it by id. The highest bit
+ * of the dependency count is set for dependency-only files. Version 1 files have no flags, their dependency-only files
+ * are the ones without a time stamp.
+ */
+object BinaryGraphFormat {
+    private const val MAGIC = 0x44414752 // "DAGR"
+    const val VERSION = 2
+    private const val DEPENDENCY_ONLY = 1 shl 31
+
+    fun write(path: Path, codeFiles: Map<String, CodeFile>) {
+        val ids = LinkedHashMap<String, Int>()
+        fun id(string: String) = ids.getOrPut(string) { ids.size }
+
+        val records = codeFiles.values.map { codeFile ->
+            val dependencies = codeFile.dependencies ?: emptyList()
+            val record = IntArray(3 + dependencies.size)
+            record[0] = id(codeFile.path)
+            record[1] = id(codeFile.module)
+            record[2] = id(codeFile.className)
+            dependencies.forEachIndexed { i, dependency -> record[3 + i] = id(dependency) }
+            record
+        }
+        val strings = ids.keys.map { it.toByteArray(Charsets.UTF_8) }
+
+        Files.createDirectories(path.parent)
+        val tmp = path.resolveSibling(path.fileName.toString() + ".tmp")
+        DataOutputStream(BufferedOutputStream(Files.newOutputStream(tmp), 1 shl 16)).use { out ->
+            out.writeInt(MAGIC)
+            out.writeInt(VERSION)
+            out.writeInt(strings.size)
+            var offset = 4 * 3 + 4 * strings.size + 4 + 4 * records.size
+            strings.forEach { bytes ->
+                out.writeInt(offset)
+                offset += 4 + bytes.size
+            }
+            out.writeInt(records.size)
+            records.forEach { record ->
+                out.writeInt(offset)
+                offset += 4 * 3 + 8 * 2 + 4 + 4 * (record.size - 3)
+            }
+            strings.forEach { bytes ->
+                out.writeInt(bytes.size)
+                out.write(bytes)
+            }
+            codeFiles.values.forEachIndexed { i, codeFile ->
+                val record = records[i]
+                out.writeInt(record[0])
+                out.writeInt(record[1])
+                out.writeInt(record[2])
+                out.writeLong(codeFile.size)
+                out.writeLong(codeFile.stamp)
+                out.writeInt((record.size - 3) or (if (codeFile.dependencyOnly) DEPENDENCY_ONLY else 0))
+                for (j in 3 until record.size) out.writeInt(record[j])
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    }
+
+    fun read(path: Path): BinaryGraph {
+        val buffer = FileChannel.open(path, StandardOpenOption.READ).use { it.map(FileChannel.MapMode.READ_ONLY, 0, it.size()) }
+        val version = buffer.getInt(4)
+        if (buffer.getInt(0) != MAGIC || version != 1 && version != VERSION) throw IOException("Unsupported graph file: $path")
+        return BinaryGraph(buffer, version)
+    }
+}
+
+/**
+ * Read-only view of a graph file. Strings and records are decoded on access, so mapping a file costs nothing until
+ * the graph is actually needed.
+ */
+class BinaryGraph(private val buffer: ByteBuffer, private val version: Int) {
+    private val stringCount = buffer.getInt(8)
+    private val fileCountPosition = 12 + 4 * stringCount
+    private val strings = arrayOfNulls<String>(stringCount)
+
+    val fileCount = buffer.getInt(fileCountPosition)
+
+    fun string(id: Int): String {
+        strings[id]?.let { return it }
+        val offset = buffer.getInt(12 + 4 * id)
+        val bytes = ByteArray(buffer.getInt(offset))
+        buffer.get(offset + 4, bytes)
+        return String(bytes, Charsets.UTF_8).also { strings[id] = it }
+    }
+
+    fun codeFile(index: Int): CodeFile {
+        var position = buffer.getInt(fileCountPosition + 4 + 4 * index)
+        val path = string(buffer.getInt(position))
+        val module = string(buffer.getInt(position + 4))
+        val className = string(buffer.getInt(position + 8))
+        val size = buffer.getLong(position + 12)
+        val stamp = buffer.getLong(position + 20)
+        val flagsAndCount = buffer.getInt(position + 28)
+        val dependencyCount = if (version == 1) flagsAndCount else flagsAndCount and DEPENDENCY_ONLY.inv()
+        position += 32
+        val dependencies = ArrayList<String>(dependencyCount)
+        repeat(dependencyCount) { dependencies.add(string(buffer.getInt(position + 4 * it))) }
+        return CodeFile(path, module, className, size, dependencies).also {
+            it.stamp = stamp
+            it.dependencyOnly = if (version == 1) stamp == 0L else flagsAndCount and DEPENDENCY_ONLY != 0
+        }
+    }
+
+    fun toCodeFiles(): MutableMap<String, CodeFile> {
+        val codeFiles = HashMap<String, CodeFile>(fileCount * 4 / 3 + 1)
+        for (i in 0 until fileCount) {
+            val codeFile = codeFile(i)
+            codeFiles[codeFile.path] = codeFile
+        }
+        return codeFiles
+    }
+}
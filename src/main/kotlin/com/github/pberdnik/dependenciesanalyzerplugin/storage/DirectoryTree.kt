@@ -0,0 +1,49 @@
+package com.github.pberdnik.dependenciesanalyzerplugin.storage
+
+import com.github.pberdnik.dependenciesanalyzerplugin.views.DirNodeView
+import com.github.pberdnik.dependenciesanalyzerplugin.views.FileNodeView
+import com.github.pberdnik.dependenciesanalyzerplugin.views.FileNodeViewColor
+import com.github.pberdnik.dependenciesanalyzerplugin.views.NodeView
+import com.intellij.openapi.vfs.VirtualFile
+
+/**
+ * Directories of analyzed files up to the project dir. Each file adds its size only to its own directory, and
+ * [aggregate] sums the sizes up to the parents in one bottom-up pass.
+ *
+ * Directories are keyed by [VirtualFile], whose name segments are already interned by the VFS, so no path strings are
+ * built except one per directory for the resulting views.
+ */
+internal class DirectoryTree(private val projectDir: VirtualFile?) {
+    private class Dir(val file: VirtualFile, val parent: Dir?) {
+        val depth: Int = if (parent == null) 0 else parent.depth + 1
+        val view = DirNodeView()
+    }
+
+    private val dirs = HashMap<VirtualFile, Dir>()
+
+    fun add(virtualFile: VirtualFile, fileNodeView: FileNodeView) {
+        val dir = dir(virtualFile.parent) ?: return
+        when (fileNodeView.color) {
+            FileNodeViewColor.GREEN -> dir.view.greenSize += fileNodeView.size
+            FileNodeViewColor.RED -> dir.view.redSize += fileNodeView.size
+            FileNodeViewColor.YELLOW -> dir.view.yellowSize += fileNodeView.size
+            else -> Unit
+        }
+    }
+
+    fun aggregate(nodeViews: MutableMap<String, NodeView>) {
+        dirs.values.sortedByDescending { it.depth }.forEach { dir ->
+            dir.parent?.view?.let { parentView ->
+                parentView.greenSize += dir.view.greenSize
+                parentView.redSize += dir.view.redSize
+                parentView.yellowSize += dir.view.yellowSize
+            }
+            nodeViews[dir.file.path] = dir.view
+        }
+    }
+
+    private fun dir(file: VirtualFile?): Dir? {
+        if (file == null || file == projectDir) return null
+        return dirs[file] ?: Dir(file, dir(file.parent)).also { dirs[file] = it }
+    }
+}
@@ -1,10 +1,12 @@
 package com.github.pberdnik.dependenciesanalyzerplugin.storage
 
+import com.github.pberdnik.dependenciesanalyzerplugin.old.graph.GraphConfig
 import com.intellij.openapi.components.PersistentStateComponent
 import com.intellij.openapi.components.ServiceManager
 import com.intellij.openapi.components.State
 import com.intellij.openapi.components.Storage
 import com.intellij.openapi.project.Project
+import com.intellij.openapi.util.SimpleModificationTracker
 import com.intellij.util.xmlb.XmlSerializerUtil
 
 @State(name = "GraphConfig", storages = [Storage("graphConfig.xml")])
@@ -12,9 +14,17 @@ class GraphConfigStorageService(val project: Project) : PersistentStateComponent
 
     private val state = GraphConfigState()
 
+    /**
+     * Changes whenever the filter rules of the settings may have changed, see [GraphConfig.pathFilter].
+     */
+    val filterRulesTracker = SimpleModificationTracker()
+
     override fun getState() = state
 
-    override fun loadState(state: GraphConfigState) = XmlSerializerUtil.copyBean<GraphConfigState>(state, this.state)
+    override fun loadState(state: GraphConfigState) {
+        XmlSerializerUtil.copyBean<GraphConfigState>(state, this.state)
+        filterRulesTracker.incModificationCount()
+    }
 
     companion object {
         fun getInstance(project: Project): GraphConfigStorageService {
@@ -0,0 +1,197 @@
+package com.github.pberdnik.dependenciesanalyzerplugin.storage
+
+import com.github.pberdnik.dependenciesanalyzerplugin.old.file.CodeFile
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+
+const val SHARD_SIZE = 2048
+
+/**
+ * Delta shards appended to a complete graph before it is written again as a whole, see [GraphShardWriter.append].
+ */
+const val MAX_DELTA_SHARDS = 64
+
+private const val MANIFEST_FILE = "manifest.txt"
+private const val JOURNAL_FILE = "shards.log"
+private const val FINGERPRINT_FILE = "fingerprint.txt"
+private const val DELTA_PREFIX = "delta-"
+private const val REMOVED_SUFFIX = ".removed"
+
+/**
+ * One file of a sharded graph: up to [SHARD_SIZE] code files of a single module in [BinaryGraphFormat]. A [removed]
+ * shard lists paths of the module deleted since the shards before it, one per line.
+ */
+class GraphShard(val fileName: String, val module: String, val filesCount: Int) {
+    val isDelta get() = fileName.startsWith(DELTA_PREFIX)
+    val removed get() = fileName.endsWith(REMOVED_SUFFIX)
+
+    fun asLine() = "$fileName\t$module\t$filesCount"
+
+    companion object {
+        fun parse(line: String): GraphShard? {
+            val parts = line.split('\t')
+            if (parts.size != 3) return null
+            return GraphShard(parts[0], parts[1], parts[2].toIntOrNull() ?: return null)
+        }
+    }
+}
+
+/**
+ * Writes a graph into [dir] shard by shard while it is being collected. Code files are grouped by module, and every
+ * [SHARD_SIZE] files of a module are written right away, so at most one unwritten shard per module is held back.
+ * Written files aren't kept, the graph is read back from its shards when it is needed.
+ *
+ * Each shard is written atomically and then recorded in a journal, so shards written before a crash can still be
+ * read. [finish] writes the remaining shards and the manifest, which marks the graph as complete.
+ *
+ * The [fingerprint] of the settings the files were analyzed with is written first, so shards of an interrupted graph
+ * have it as well. A graph without one, like one mixing files analyzed with different settings, is never reused by
+ * incremental analysis.
+ */
+class GraphShardWriter(val dir: Path, val fingerprint: String? = null) {
+    private var addedCount = 0
+    private val pending = HashMap<String, MutableList<CodeFile>>()
+    private val shards = mutableListOf<GraphShard>()
+    private var nextShard = 0
+    private var failure: IOException? = null
+
+    /**
+     * Files added so far, the graph itself is never copied for writing.
+     */
+    val filesCount: Int @Synchronized get() = addedCount
+
+    init {
+        Files.createDirectories(dir)
+        if (fingerprint != null) {
+            writeAtomically(dir.resolve(FINGERPRINT_FILE), fingerprint)
+        } else {
+            Files.deleteIfExists(dir.resolve(FINGERPRINT_FILE))
+        }
+    }
+
+    fun add(codeFile: CodeFile) {
+        val full = synchronized(this) {
+            addedCount++
+            val moduleFiles = pending.getOrPut(codeFile.module) { ArrayList() }
+            moduleFiles.add(codeFile)
+            if (moduleFiles.size < SHARD_SIZE) return
+            pending.remove(codeFile.module)
+        }
+        writeShard(codeFile.module, full!!)
+    }
+
+    /**
+     * Writes the remaining shards and the manifest.
+     */
+    @Throws(IOException::class)
+    fun finish() {
+        val remaining = synchronized(this) { pending.toMap().also { pending.clear() } }
+        remaining.forEach { (module, moduleFiles) -> writeShard(module, moduleFiles) }
+        synchronized(this) {
+            failure?.let { throw it }
+            writeAtomically(dir.resolve(MANIFEST_FILE), shards.joinToString("\n") { it.asLine() })
+        }
+    }
+
+    /**
+     * Adds a shard of another graph as it is, without reading it. The copy is journaled only once it is complete.
+     */
+    fun copyShard(module: String, from: Path, filesCount: Int) {
+        val shard = GraphShard(nextFileName(module), module, filesCount)
+        synchronized(this) { addedCount += filesCount }
+        try {
+            Files.copy(from, dir.resolve(shard.fileName), StandardCopyOption.REPLACE_EXISTING)
+            record(shard)
+        } catch (e: IOException) {
+            synchronized(this) { if (failure == null) failure = e }
+        }
+    }
+
+    /**
+     * A failed write doesn't stop the analysis which feeds the writer, it is reported by [finish].
+     */
+    private fun writeShard(module: String, moduleFiles: List<CodeFile>) {
+        val shard = GraphShard(nextFileName(module), module, moduleFiles.size)
+        try {
+            BinaryGraphFormat.write(dir.resolve(shard.fileName), moduleFiles.associateBy { it.path })
+            record(shard)
+        } catch (e: IOException) {
+            synchronized(this) { if (failure == null) failure = e }
+        }
+    }
+
+    @Synchronized
+    private fun nextFileName(module: String) = "${nextShard++}-${module.replace(UNSAFE_FILE_NAME_CHARS, "_")}.bin"
+
+    @Synchronized
+    private fun record(shard: GraphShard) {
+        shards.add(shard)
+        Files.write(dir.resolve(JOURNAL_FILE), listOf(shard.asLine()), StandardOpenOption.CREATE, StandardOpenOption.APPEND)
+    }
+
+    companion object {
+        private val UNSAFE_FILE_NAME_CHARS = Regex("[^A-Za-z0-9._-]")
+
+        fun isComplete(dir: Path) = Files.exists(dir.resolve(MANIFEST_FILE))
+
+        /**
+         * Appends [changed] files and [removed] paths, both grouped by module, to the complete graph in [dir] as delta
+         * shards, so a few changed files don't make the whole graph be written again. The manifest is replaced only after
+         * the delta shards are written, a failed append leaves the graph as it was. The fingerprint is dropped unless the
+         * changed files were analyzed with the same settings.
+         *
+         * @return the appended shards, in the order they override the earlier ones
+         */
+        @Throws(IOException::class)
+        fun append(dir: Path, changed: Map<String, List<CodeFile>>, removed: Map<String, List<String>>, fingerprint: String?): List<GraphShard> {
+            val shards = readShards(dir)
+            var nextShard = shards.maxOfOrNull { it.fileName.removePrefix(DELTA_PREFIX).substringBefore('-').toIntOrNull() ?: -1 }?.plus(1) ?: 0
+            fun fileName(module: String, suffix: String) = "$DELTA_PREFIX${nextShard++}-${module.replace(UNSAFE_FILE_NAME_CHARS, "_")}$suffix"
+            val appended = mutableListOf<GraphShard>()
+            removed.forEach { (module, paths) ->
+                val shard = GraphShard(fileName(module, REMOVED_SUFFIX), module, paths.size)
+                Files.write(dir.resolve(shard.fileName), paths)
+                appended.add(shard)
+            }
+            changed.forEach { (module, moduleFiles) ->
+                val shard = GraphShard(fileName(module, ".bin"), module, moduleFiles.size)
+                BinaryGraphFormat.write(dir.resolve(shard.fileName), moduleFiles.associateBy { it.path })
+                appended.add(shard)
+            }
+            if (fingerprint == null || fingerprint != readFingerprint(dir)) Files.deleteIfExists(dir.resolve(FINGERPRINT_FILE))
+            writeAtomically(dir.resolve(MANIFEST_FILE), (shards + appended).joinToString("\n") { it.asLine() })
+            return appended
+        }
+
+        /**
+         * Shards of a complete graph from its manifest, or of an interrupted one from its journal.
+         */
+        fun readShards(dir: Path): List<GraphShard> {
+            val file = if (isComplete(dir)) dir.resolve(MANIFEST_FILE) else dir.resolve(JOURNAL_FILE)
+            if (!Files.exists(file)) return emptyList()
+            return Files.readAllLines(file).mapNotNull { GraphShard.parse(it) }
+        }
+
+        /**
+         * Fingerprint of the settings the graph in [dir] was analyzed with, null if it wasn't recorded.
+         */
+        fun readFingerprint(dir: Path): String? {
+            val file = dir.resolve(FINGERPRINT_FILE)
+            return if (Files.exists(file)) Files.readString(file).trim() else null
+        }
+
+        private fun writeAtomically(path: Path, text: String) {
+            val tmp = path.resolveSibling(path.fileName.toString() + ".tmp")
+            Files.writeString(tmp, text)
+            try {
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+            } catch (e: IOException) {
+                Files.deleteIfExists(tmp)
+                throw e
+            }
+        }
+    }
+}
@@ -1,86 +1,581 @@
 package com.github.pberdnik.dependenciesanalyzerplugin.storage
 
+import com.github.pberdnik.dependenciesanalyzerplugin.old.file.CodeFile
 import com.github.pberdnik.dependenciesanalyzerplugin.old.graph.*
 import com.github.pberdnik.dependenciesanalyzerplugin.views.DirNodeView
 import com.github.pberdnik.dependenciesanalyzerplugin.views.FileNodeView
 import com.github.pberdnik.dependenciesanalyzerplugin.views.FileNodeViewColor
 import com.github.pberdnik.dependenciesanalyzerplugin.views.NodeView
+import com.intellij.ide.projectView.ProjectView
+import com.intellij.openapi.application.ApplicationManager
 import com.intellij.openapi.components.PersistentStateComponent
 import com.intellij.openapi.components.ServiceManager
 import com.intellij.openapi.components.State
 import com.intellij.openapi.components.Storage
 import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.progress.Task
 import com.intellij.openapi.project.Project
+import com.intellij.openapi.project.getProjectCachePath
 import com.intellij.openapi.project.guessProjectDir
+import com.intellij.openapi.util.io.FileUtil
 import com.intellij.openapi.vfs.VirtualFile
-import com.intellij.openapi.vfs.VirtualFileManager
+import com.intellij.util.PathUtil
+import com.intellij.util.concurrency.SequentialTaskExecutor
 import com.intellij.util.xmlb.XmlSerializerUtil
 import org.jetbrains.annotations.NonNls
-import java.nio.file.Paths
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+private const val GRAPH_FILE_PREFIX = "graph-"
+private const val EXPORTED_PROJECT_DIR_FILE = "project-dir.txt"
+private const val NODE_VIEWS_DIR = "views"
 
 @State(name = "DependenciesGraph", storages = [Storage("dependenciesInfo.xml")])
-class GraphStorageService(val project: Project) : PersistentStateComponent<GraphState> {
+class GraphStorageService(val project: Project) : PersistentStateComponent<GraphStorageState> {
     private val LOG = Logger.getInstance(GraphStorageService::class.java)
 
-    private val state = GraphState()
-    var dependencyGraph = DependencyGraph()
-        private set
+    private val state = GraphStorageState()
+    private var storedGraph: StoredGraph? = null
+    @Volatile
+    private var snapshot = AnalysisSnapshot(DependencyGraph(), ConcurrentHashMap(), ConcurrentHashMap(), 0)
+    private val analysisGeneration = AtomicInteger()
+    private val snapshotVersion = AtomicInteger()
+    private var lastWriterVersion = 0
+    private val activeWriterDirs = HashSet<Path>()
     val graphConfig = GraphConfig(project)
-    var nodeViews = mutableMapOf<String, NodeView>()
-    val virtualFileManager = VirtualFileManager.getInstance()
+    private val virtualFileCache = VirtualFileCache(project)
+    private val mobilityExecutor = SequentialTaskExecutor.createSequentialApplicationPoolExecutor("Dependencies Recoloring")
+    private val storedNodeViews by lazy { StoredNodeViews(project, graphDir.resolve(NODE_VIEWS_DIR)) }
+    private val nodeViewsExecutor = SequentialTaskExecutor.createSequentialApplicationPoolExecutor("Dependencies Views Saving")
+
+    /**
+     * Graph of the last finished analysis. A new analysis or recoloring replaces it as a whole, changed files are
+     * patched into it by [updateFiles], which its queries are synchronized with.
+     */
+    val dependencyGraph: DependencyGraph get() = snapshot.dependencyGraph
+
+    /**
+     * Views of files and directories of the last finished analysis, swapped together with [dependencyGraph]. Views of
+     * changed files and their directories are replaced in place by [updateFiles], a published view never changes.
+     */
+    val nodeViews: Map<String, NodeView> get() = snapshot.nodeViews
+
+    /**
+     * View of [file] from the published analysis. Until one is published in this session, the views stored by the last
+     * one are read, only for the module of [file], see [StoredNodeViews].
+     */
+    fun nodeView(file: VirtualFile): NodeView? = when {
+        isAnalysisPublished -> snapshot.nodeViews[file.path]
+        hasStoredGraph -> storedNodeViews.get(file)
+        else -> null
+    }
+
+    /**
+     * Changes whenever new analysis results are published, including recolorings and live updates. Results derived
+     * from the published ones can be cached under it.
+     */
+    val analysisVersion: Int get() = snapshot.version
+
+    /**
+     * Stored graph. Only its shard index is read on first access, code files of a module are read when asked for.
+     */
+    val graph: StoredGraph
+        get() = synchronized(this) { storedGraph ?: readGraph().also { storedGraph = it } }
+
+    /**
+     * Whether a graph was stored by an earlier analysis, checked without reading it.
+     */
+    val hasStoredGraph: Boolean get() = state.file.isNotEmpty()
+
+    /**
+     * Whether results of an analysis were published in this session. After a restart only the stored graph is there
+     * until it is analyzed again.
+     */
+    val isAnalysisPublished: Boolean get() = snapshot.version > 0
+
+    private val graphDir: Path get() = project.getProjectCachePath("dependencies-analyzer")
 
     override fun getState() = state
 
-    override fun loadState(state: GraphState) = XmlSerializerUtil.copyBean<GraphState>(state, this.state)
-
-    fun analyze() {
-        dependencyGraph = asDependencyGraph(state.codeFiles, graphConfig)
-        dependencyGraph.process(graphConfig)
-        val projectDir = project.guessProjectDir()
-        nodeViews.clear()
-        dependencyGraph.nodes.forEach { (_, node) ->
-            val virtualFile = virtualFileManager.findFileByNioPath(Paths.get(node.path))
-            if (virtualFile == null) {
-                LOG.error("Can't find virtual file for path: ${node.path}")
-                return@forEach
+    override fun loadState(state: GraphStorageState) {
+        XmlSerializerUtil.copyBean(state, this.state)
+        synchronized(this) { storedGraph = null }
+        if (this.state.codeFiles.isNotEmpty()) {
+            LOG.info("Migrating ${this.state.codeFiles.size} files from dependenciesInfo.xml to the binary graph file")
+            val legacyCodeFiles = this.state.codeFiles
+            this.state.codeFiles = HashMap()
+            synchronized(this) { storedGraph = StoredGraph.inMemory(legacyCodeFiles) }
+            ApplicationManager.getApplication().executeOnPooledThread { saveGraph(legacyCodeFiles) }
+        }
+    }
+
+    /**
+     * Writer of a new graph version into its own directory. Directories of interrupted analyses are never reused, the
+     * stored graph may still read its shards from them.
+     *
+     * The writer is active until it is committed or [releaseGraphWriter] is called, and its directory isn't deleted
+     * while it is.
+     */
+    @Synchronized
+    fun newGraphWriter(fingerprint: String? = null): GraphShardWriter {
+        val version = maxOf(state.version, lastWriterVersion, graphDirVersions().maxOrNull() ?: 0) + 1
+        lastWriterVersion = version
+        val dir = graphDir.resolve("$GRAPH_FILE_PREFIX$version")
+        activeWriterDirs.add(dir)
+        return GraphShardWriter(dir, fingerprint)
+    }
+
+    /**
+     * Ends [writer] without committing it, like when its analysis was canceled. Its shards are kept, so the next read
+     * of the graph can recover them. Does nothing if the writer was committed already.
+     */
+    @Synchronized
+    fun releaseGraphWriter(writer: GraphShardWriter) {
+        activeWriterDirs.remove(writer.dir)
+    }
+
+    /**
+     * Whether a graph is being written, by an analysis which didn't commit or release its writer yet.
+     */
+    val isWritingGraph: Boolean
+        @Synchronized get() = activeWriterDirs.isNotEmpty()
+
+    /**
+     * Finishes [writer] and makes its graph the stored one. Writing into a new directory means files which are still
+     * mapped are never overwritten.
+     *
+     * A writer created before the one of the stored graph is refused and its directory deleted, so the stored graph
+     * never goes back to an older version.
+     *
+     * @return false if the graph couldn't be written or is older than the stored one, the stored graph stays as it was then
+     */
+    fun commitGraph(writer: GraphShardWriter): Boolean {
+        try {
+            writer.finish()
+        } catch (e: IOException) {
+            LOG.warn("Can't save dependencies graph to ${writer.dir}", e)
+            releaseGraphWriter(writer)
+            return false
+        }
+        synchronized(this) {
+            activeWriterDirs.remove(writer.dir)
+            val version = writer.dir.fileName.toString().removePrefix(GRAPH_FILE_PREFIX).toInt()
+            if (version < state.version) {
+                LOG.info("Dropping dependencies graph ${writer.dir}, a newer graph was stored while it was written")
+                FileUtil.delete(writer.dir)
+                return false
+            }
+            val newGraph = StoredGraph.read(listOf(writer.dir))
+            storedGraph = newGraph
+            state.version = version
+            state.file = writer.dir.fileName.toString()
+            state.filesCount = newGraph.filesCount
+            deleteStaleGraphFiles(state.file)
+        }
+        return true
+    }
+
+    fun saveGraph(codeFiles: Map<String, CodeFile> = graph.codeFiles()) {
+        val writer = newGraphWriter()
+        codeFiles.values.forEach { writer.add(it) }
+        commitGraph(writer)
+    }
+
+    /**
+     * Copies the stored graph into [target] as a complete graph directory, together with the project directory its
+     * paths start with, so that [importGraph] can read it on another machine. Shards are copied without being read.
+     */
+    @Throws(IOException::class)
+    fun exportGraph(target: Path) {
+        if (Files.isDirectory(target) && !GraphShardWriter.isComplete(target) && Files.list(target).use { it.findAny().isPresent }) {
+            throw IOException("$target is neither empty nor an exported dependencies graph")
+        }
+        FileUtil.delete(target)
+        val writer = GraphShardWriter(target, graph.fingerprint)
+        graph.writeUpdated(writer, emptyList(), emptyList(), emptyList())
+        writer.finish()
+        Files.writeString(target.resolve(EXPORTED_PROJECT_DIR_FILE), graphConfig.projectDir)
+    }
+
+    /**
+     * Makes a graph written by [exportGraph] the stored one. Paths under the project directory of the export are moved
+     * under the directory of this project. Files keep their exported time stamps, so incremental analysis checks every
+     * file of a checkout it can't compare with again instead of trusting the imported dependencies.
+     */
+    @Throws(IOException::class)
+    fun importGraph(source: Path) {
+        if (!GraphShardWriter.isComplete(source)) throw IOException("$source is not an exported dependencies graph")
+        val projectDirFile = source.resolve(EXPORTED_PROJECT_DIR_FILE)
+        val exportedProjectDir = if (Files.exists(projectDirFile)) Files.readString(projectDirFile).trim() else graphConfig.projectDir
+        val paths = HashMap<String, String>()
+        fun rebase(path: String) = paths.getOrPut(path) {
+            if (path.startsWith(exportedProjectDir)) graphConfig.projectDir + path.substring(exportedProjectDir.length) else path
+        }
+        val importedGraph = StoredGraph.read(listOf(source))
+        val imported = importedGraph.codeFiles()
+        val codeFiles = HashMap<String, CodeFile>(imported.size * 4 / 3 + 1)
+        imported.values.forEach { codeFile ->
+            val path = rebase(codeFile.path)
+            val dependencies = (codeFile.dependencies ?: emptyList()).mapTo(ArrayList()) { rebase(it) }
+            codeFiles[path] = CodeFile(path, codeFile.module, codeFile.className, codeFile.size, dependencies).also {
+                it.stamp = codeFile.stamp
+                it.dependencyOnly = codeFile.dependencyOnly
+            }
+        }
+        LOG.info("Imported ${codeFiles.size} files from $source, exported from $exportedProjectDir")
+        storedNodeViews.clear()
+        val writer = newGraphWriter(importedGraph.fingerprint)
+        codeFiles.values.forEach { writer.add(it) }
+        if (!commitGraph(writer)) throw IOException("Can't save the imported dependencies graph to ${writer.dir}")
+    }
+
+    /**
+     * Reads the shard index of the stored graph. A graph in the older single file format is read whole and rewritten
+     * as shards in the background.
+     *
+     * The previous graph is deleted when a new one is committed, before the settings holding the pointer to the new one
+     * are saved. If the IDE stopped in between, the pointer names an older or a deleted graph, and the newest complete
+     * graph is read instead.
+     */
+    private fun readGraph(): StoredGraph {
+        val newestComplete = graphDirs().filter { (dir, _) -> GraphShardWriter.isComplete(dir) }.maxByOrNull { (_, version) -> version }
+        if (newestComplete != null) {
+            val (dir, version) = newestComplete
+            if (version > state.version || state.file.isEmpty() || !Files.exists(graphDir.resolve(state.file))) {
+                LOG.info("Reading dependencies graph from $dir, the pointer to it wasn't saved")
+                state.version = version
+                state.file = dir.fileName.toString()
+            }
+        }
+        val dirs = mutableListOf<Path>()
+        if (state.file.isNotEmpty()) {
+            val path = graphDir.resolve(state.file)
+            if (Files.isDirectory(path)) {
+                dirs += path
+            } else {
+                try {
+                    val codeFiles = BinaryGraphFormat.read(path).toCodeFiles()
+                    ApplicationManager.getApplication().executeOnPooledThread { saveGraph(codeFiles) }
+                    return StoredGraph.inMemory(codeFiles)
+                } catch (e: IOException) {
+                    LOG.warn("Can't read dependencies graph from ${state.file}", e)
+                }
+            }
+        }
+        dirs += interruptedGraphDirs()
+        return try {
+            StoredGraph.read(dirs)
+        } catch (e: IOException) {
+            LOG.warn("Can't read dependencies graph index from $graphDir", e)
+            StoredGraph.EMPTY
+        }
+    }
+
+    /**
+     * Directories of analyses which didn't finish, oldest first. Their shards are newer than the stored graph, so they
+     * replace its files.
+     */
+    private fun interruptedGraphDirs(): List<Path> = graphDirs()
+        .filter { (dir, version) -> version > state.version && !GraphShardWriter.isComplete(dir) }
+        .sortedBy { (_, version) -> version }
+        .map { (dir, _) -> dir }
+
+    private fun graphDirVersions(): List<Int> = graphDirs().map { (_, version) -> version }
+
+    private fun graphDirs(): List<Pair<Path, Int>> {
+        if (!Files.isDirectory(graphDir)) return emptyList()
+        return try {
+            Files.newDirectoryStream(graphDir, "$GRAPH_FILE_PREFIX*").use { dirs ->
+                dirs.filter { Files.isDirectory(it) }
+                    .mapNotNull { dir -> dir.fileName.toString().removePrefix(GRAPH_FILE_PREFIX).toIntOrNull()?.let { dir to it } }
+            }
+        } catch (e: IOException) {
+            LOG.warn("Can't list graph directories in $graphDir", e)
+            emptyList()
+        }
+    }
+
+    /**
+     * Deletes graph files other than the current one, except directories of writers which are still active.
+     */
+    private fun deleteStaleGraphFiles(currentFileName: String) {
+        try {
+            Files.newDirectoryStream(graphDir, "$GRAPH_FILE_PREFIX*").use { files ->
+                files.filter { it.fileName.toString() != currentFileName && it !in activeWriterDirs }.forEach { FileUtil.delete(it) }
+            }
+        } catch (e: IOException) {
+            // a file can't be deleted while it is mapped on Windows, it will be removed after the next save
+            LOG.debug(e)
+        }
+    }
+
+    /**
+     * Adds files of [metrics] which took longer than the slow file budget to resolve to the filtered classes, by their
+     * path under the project directory, so later analyses skip them. Only the slowest files kept by the metrics are
+     * looked at, more files over the budget are excluded after the next runs.
+     */
+    fun excludeSlowFiles(metrics: AnalysisMetrics) {
+        val budget = graphConfig.graphConfigState.slowFileBudgetMs
+        if (budget <= 0) return
+        val excluded = metrics.slowestFiles()
+            .filter { it.resolveMillis > budget }
+            .map { it.path.removePrefix(graphConfig.projectDir) }
+        if (excluded.isEmpty()) return
+        LOG.info("Excluding ${excluded.size} files which took longer than $budget ms to resolve: $excluded")
+        graphConfig.addFilteredClasses(excluded)
+        metrics.excludedFiles = excluded
+    }
+
+    /**
+     * Stats of the last finished analysis, also published to [AnalysisMetrics.TOPIC]. Not kept across restarts.
+     */
+    @Volatile
+    var lastAnalysisStats: AnalysisStats? = null
+        private set
+
+    /**
+     * Runs [analyze] as a cancellable background task and refreshes the project view once the new results are in place.
+     */
+    fun analyzeInBackground(metrics: AnalysisMetrics = AnalysisMetrics()) {
+        object : Task.Backgroundable(project, "Analyzing dependency graph", true) {
+            override fun run(indicator: ProgressIndicator) {
+                analyze(indicator, metrics)
             }
-            val path = virtualFile.path
-            val fileNodeView = FileNodeView(node.asNodeViewColor(), node.codeFile.size / 50, node.depth, node.cycle != null)
-            if (nodeViews.containsKey(path)) {
-                LOG.error("nodeViews already contains path [$path] with value: ${nodeViews[path]}")
+
+            override fun onSuccess() {
+                ProjectView.getInstance(project).refresh()
             }
-            nodeViews[path] = fileNodeView
-            var parent = virtualFile.parent
-            while (parent != null && parent != projectDir) {
-                val dirNodeView = nodeViews[parent.path] as? DirNodeView ?: run {
-                    val newDirNodeView = DirNodeView()
-                    nodeViews[parent.path] = newDirNodeView
-                    newDirNodeView
+        }.queue()
+    }
+
+    /**
+     * Builds the graph and the node views aside and swaps them in at the end. If analysis is started again before this
+     * one finishes, only the latest result is published. This is the only place which reads every module of the stored
+     * graph, node views are stored by module once they are published, so views can be shown after a restart without it.
+     */
+    fun analyze(indicator: ProgressIndicator, metrics: AnalysisMetrics = AnalysisMetrics()) {
+        val generation = analysisGeneration.incrementAndGet()
+        indicator.isIndeterminate = false
+        indicator.text = "Building dependency graph"
+        indicator.fraction = 0.0
+        val dependencyGraph = metrics.measure(AnalysisMetrics.GRAPH_BUILDING) { asDependencyGraph(graph.codeFiles(), graphConfig) }
+        indicator.checkCanceled()
+        indicator.text = "Finding cycles and mobility"
+        indicator.fraction = 0.2
+        dependencyGraph.process(graphConfig, metrics)
+        indicator.checkCanceled()
+        indicator.text = "Collecting file views"
+        indicator.fraction = 0.4
+        val virtualFiles = HashMap<Node, VirtualFile>()
+        val nodeViews = metrics.measure(AnalysisMetrics.NODE_VIEWS) {
+            val nodeViewsBuilder = NodeViewsBuilder(project.guessProjectDir())
+            val nodesCount = dependencyGraph.nodes.size
+            dependencyGraph.nodes.values.forEachIndexed { i, node ->
+                indicator.checkCanceled()
+                indicator.fraction = 0.4 + 0.4 * i / nodesCount
+                val virtualFile = virtualFileCache.find(node.path)
+                if (virtualFile == null) {
+                    LOG.error("Can't find virtual file for path: ${node.path}")
+                    return@forEachIndexed
                 }
-                when (fileNodeView.color) {
-                    FileNodeViewColor.GREEN -> dirNodeView.greenSize += fileNodeView.size
-                    FileNodeViewColor.RED -> dirNodeView.redSize += fileNodeView.size
-                    FileNodeViewColor.YELLOW -> dirNodeView.yellowSize += fileNodeView.size
-                    else -> Unit
+                virtualFiles[node] = virtualFile
+                nodeViewsBuilder.add(node, virtualFile)
+            }
+            ConcurrentHashMap(nodeViewsBuilder.build())
+        }
+        indicator.checkCanceled()
+        indicator.text = "Collecting dependency files"
+        indicator.fraction = 0.8
+        val files = metrics.measure(AnalysisMetrics.DEPENDENCY_FILES) { collectDependencyFiles(dependencyGraph, virtualFiles) }
+        val stats = synchronized(analysisGeneration) {
+            if (analysisGeneration.get() != generation) return
+            snapshot = AnalysisSnapshot(dependencyGraph, nodeViews, files, snapshotVersion.incrementAndGet())
+            metrics.stats().also { lastAnalysisStats = it }
+        }
+        val pathsByModule = dependencyGraph.nodes.values.groupBy({ it.codeFile.module }, { it.path })
+        nodeViewsExecutor.execute { storedNodeViews.writeAll(nodeViews, pathsByModule) }
+        project.messageBus.syncPublisher(AnalysisMetrics.TOPIC).statsPublished(stats)
+    }
+
+    private fun collectDependencyFiles(dependencyGraph: DependencyGraph, virtualFiles: Map<Node, VirtualFile>): ConcurrentHashMap<String, DependencyFiles> {
+        val cycleFiles = HashMap<Cycle, Array<VirtualFile>>()
+        val files = ConcurrentHashMap<String, DependencyFiles>(dependencyGraph.nodes.size)
+        dependencyGraph.nodes.forEach { (path, node) ->
+            files[path] = node.dependencyFiles({ virtualFiles[it] }, cycleFiles)
+        }
+        return files
+    }
+
+    /**
+     * Makes [module] green or not and recolors the published graph in the background, see [updateMobility].
+     */
+    fun setGreenModule(module: String, green: Boolean) {
+        synchronized(graphConfig) {
+            val greenModules = HashSet(graphConfig.greenModules)
+            val changed = if (green) greenModules.add(module) else greenModules.remove(module)
+            if (!changed) return
+            graphConfig.graphConfigState.greenModules = greenModules
+        }
+        mobilityExecutor.execute { updateMobility(listOf(module), emptyList()) }
+    }
+
+    /**
+     * Replaces the red classes and recolors files of the added and removed ones in the background, see [updateMobility].
+     */
+    fun setRedClasses(classes: Set<String>) {
+        val changedClasses = synchronized(graphConfig) {
+            val previous = graphConfig.redClasses
+            graphConfig.redClasses = classes.toSet()
+            (previous - classes) + (classes - previous)
+        }
+        if (changedClasses.isEmpty()) return
+        mobilityExecutor.execute { updateMobility(emptyList(), changedClasses) }
+    }
+
+    /**
+     * Recolors files of [changedModules] and [changedClasses] and everything depending on them without rebuilding the
+     * graph. A copy of the published graph is recolored and published together with a copy of the node views where
+     * only the views of recolored files and their directories differ. Runs on the background thread of [setGreenModule]
+     * and [setRedClasses], so recolorings are applied in the order of the changes.
+     */
+    private fun updateMobility(changedModules: Collection<String>, changedClasses: Collection<String>) {
+        synchronized(analysisGeneration) {
+            val snapshot = snapshot
+            val dependencyGraph = snapshot.dependencyGraph.copy()
+            val seeds = dependencyGraph.nodes.values.filter {
+                it.codeFile.module in changedModules || it.codeFile.className in changedClasses
+            }
+            if (seeds.isEmpty()) return
+            val nodeViews = NodeViewsPatch(ConcurrentHashMap(snapshot.nodeViews), project.guessProjectDir()?.path)
+            val recolored = dependencyGraph.updateMobility(graphConfig, seeds)
+            recolored.forEach { nodeViews.replace(it) }
+            this.snapshot = AnalysisSnapshot(dependencyGraph, nodeViews.nodeViews, snapshot.files, snapshotVersion.incrementAndGet())
+            saveNodeViews(nodeViews.nodeViews, recolored)
+        }
+        ApplicationManager.getApplication().invokeLater({ ProjectView.getInstance(project).refresh() }, project.disposed)
+    }
+
+    /**
+     * Stores files analyzed again after they changed and patches the published analysis instead of running a new one.
+     * The changed files are appended to the stored graph as delta shards, which are merged when the graph is written
+     * again as a whole. The published graph is updated in place, see [DependencyGraph.update], and only views of
+     * recolored files and their directories and dependency lists of files next to a change are replaced.
+     *
+     * Stored files which aren't part of the dependency graph are removed from the stored graph by the next analysis.
+     *
+     * Only one graph is written at a time: while an analysis writes its graph nothing is updated, the caller should
+     * try again after the analysis.
+     *
+     * @param dependencyOnly files seen only as dependencies of [changed] files, they are stored if they weren't yet
+     * @param fingerprint fingerprint of the settings [changed] files were analyzed with, the graph keeps its own only
+     * if they match
+     * @return false if nothing was updated because another graph is being written
+     */
+    fun updateFiles(changed: List<CodeFile>, dependencyOnly: List<CodeFile>, removed: Collection<String>, fingerprint: String): Boolean {
+        val removedByModule = synchronized(analysisGeneration) {
+            val dependencyGraph = snapshot.dependencyGraph
+            removed.mapNotNull { path -> dependencyGraph.node(path)?.let { it.codeFile.module to path } }
+                .groupBy({ (module, _) -> module }, { (_, path) -> path })
+        }
+        synchronized(this) {
+            if (isWritingGraph) return false
+            val graph = graph
+            val newFiles = dependencyOnly.filter { !graph.codeFiles(it.module).containsKey(it.path) }
+            val dir = graphDir.resolve(state.file)
+            val appended = if (state.file.isNotEmpty() && graph.canAppend(dir)) {
+                try {
+                    graph.appended(dir, changed + newFiles, removedByModule, fingerprint)
+                } catch (e: IOException) {
+                    LOG.warn("Can't append changed files to dependencies graph $dir", e)
+                    null
+                }
+            } else {
+                null
+            }
+            if (appended != null) {
+                storedGraph = appended
+                state.filesCount = appended.filesCount
+            } else {
+                val writer = newGraphWriter(graph.fingerprint?.takeIf { it == fingerprint })
+                try {
+                    graph.writeUpdated(writer, changed + newFiles, removed, removedByModule.keys)
+                } catch (e: Throwable) {
+                    releaseGraphWriter(writer)
+                    throw e
                 }
-                parent = parent.parent
+                commitGraph(writer)
             }
         }
+        synchronized(analysisGeneration) {
+            val snapshot = snapshot
+            val dependencyGraph = snapshot.dependencyGraph
+            val changedByPath = changed.associateBy { it.path }
+            val dependencyOnlyByPath = dependencyOnly.associateBy { it.path }
+            val update = dependencyGraph.update(graphConfig, changed, removed) { path ->
+                changedByPath[path] ?: dependencyGraph.nodes[path]?.codeFile ?: dependencyOnlyByPath[path]
+            }
+            val nodeViews = NodeViewsPatch(snapshot.nodeViews, project.guessProjectDir()?.path)
+            val files = snapshot.files
+            update.removed.forEach {
+                nodeViews.remove(it.path)
+                files.remove(it.path)
+            }
+            (update.recolored + update.touched).toSet().forEach { nodeViews.replace(it) }
+            val cycleFiles = HashMap<Cycle, Array<VirtualFile>>()
+            update.touched.forEach { node -> files[node.path] = node.dependencyFiles({ virtualFileCache.find(it.path) }, cycleFiles) }
+            this.snapshot = AnalysisSnapshot(dependencyGraph, snapshot.nodeViews, files, snapshotVersion.incrementAndGet())
+            saveNodeViews(snapshot.nodeViews, update.recolored + update.touched + update.removed)
+        }
+        return true
     }
 
-    fun getForwardDepsForPath(path: @NonNls String): List<VirtualFile> {
-        val node = dependencyGraph.nodes[path] ?: return mutableListOf()
-        return node.dependencies.mapNotNull { dep -> virtualFileManager.findFileByNioPath(Paths.get(dep.path)) }
+    /**
+     * Stores views of the modules of [changed] nodes again in the background, other modules keep their stored views.
+     */
+    private fun saveNodeViews(nodeViews: Map<String, NodeView>, changed: Collection<Node>) {
+        val changedModules = changed.mapTo(HashSet()) { it.codeFile.module }
+        if (changedModules.isEmpty()) return
+        nodeViewsExecutor.execute {
+            val graph = graph
+            storedNodeViews.write(nodeViews, changedModules.associateWith { graph.codeFiles(it).keys })
+        }
     }
 
-    fun getBackwardDepsForPath(path: @NonNls String): List<VirtualFile> {
-        val node = dependencyGraph.nodes[path] ?: return mutableListOf()
-        return node.backwardDependencies.mapNotNull { dep -> virtualFileManager.findFileByNioPath(Paths.get(dep.path)) }
+    private fun Node.dependencyFiles(virtualFileOf: (Node) -> VirtualFile?, cycleFiles: MutableMap<Cycle, Array<VirtualFile>>) =
+        DependencyFiles(
+            dependencies.mapNotNull(virtualFileOf).toTypedArray(),
+            backwardDependencies.mapNotNull(virtualFileOf).toTypedArray(),
+            cycle?.let { cycle -> cycleFiles.getOrPut(cycle) { cycle.nodes.mapNotNull(virtualFileOf).toTypedArray() } } ?: VirtualFile.EMPTY_ARRAY
+        )
+
+    /**
+     * Files [path] depends on directly or transitively, from the reachability index of the published graph.
+     */
+    fun getTransitiveForwardDepsForPath(path: @NonNls String): Array<VirtualFile> {
+        return snapshot.dependencyGraph.transitiveDependencies(path).mapNotNull { virtualFileCache.find(it.path) }.toTypedArray()
+    }
+
+    /**
+     * Files depending on [path] directly or transitively, from the reachability index of the published graph.
+     */
+    fun getTransitiveBackwardDepsForPath(path: @NonNls String): Array<VirtualFile> {
+        return snapshot.dependencyGraph.transitiveDependents(path).mapNotNull { virtualFileCache.find(it.path) }.toTypedArray()
     }
 
-    fun getCycleDepsForPath(path: @NonNls String): List<VirtualFile> {
-        val node = dependencyGraph.nodes[path] ?: return mutableListOf()
-        return node.cycle?.nodes?.mapNotNull { dep -> virtualFileManager.findFileByNioPath(Paths.get(dep.path)) } ?: mutableListOf()
+    fun getForwardDepsForPath(path: @NonNls String): Array<VirtualFile> {
+        return snapshot.files[path]?.forward ?: VirtualFile.EMPTY_ARRAY
+    }
+
+    fun getBackwardDepsForPath(path: @NonNls String): Array<VirtualFile> {
+        return snapshot.files[path]?.backward ?: VirtualFile.EMPTY_ARRAY
+    }
+
+    fun getCycleDepsForPath(path: @NonNls String): Array<VirtualFile> {
+        return snapshot.files[path]?.cycle ?: VirtualFile.EMPTY_ARRAY
     }
 
     companion object {
@@ -90,8 +585,48 @@ class GraphStorageService(val project: Project) : PersistentStateComponent<Graph
     }
 }
 
-private fun Node.asNodeViewColor() = when {
-    color == Color.GREEN -> FileNodeViewColor.GREEN
-    color == Color.RED -> if (onlyRed != null) FileNodeViewColor.YELLOW else FileNodeViewColor.RED
-    else -> FileNodeViewColor.GRAY
+private class AnalysisSnapshot(
+    val dependencyGraph: DependencyGraph,
+    val nodeViews: ConcurrentHashMap<String, NodeView>,
+    val files: ConcurrentHashMap<String, DependencyFiles>,
+    val version: Int
+)
+
+private class DependencyFiles(val forward: Array<VirtualFile>, val backward: Array<VirtualFile>, val cycle: Array<VirtualFile>)
+
+/**
+ * Replaces file views of [nodeViews] one by one. Directory views are walked up by path, so views of deleted files can
+ * be taken out as well. A directory view may be read while it is in the map, so it is replaced by a changed copy.
+ */
+private class NodeViewsPatch(val nodeViews: ConcurrentHashMap<String, NodeView>, private val projectDirPath: String?) {
+
+    fun replace(node: Node) {
+        remove(node.path)
+        val fileNodeView = node.asFileNodeView()
+        nodeViews[node.path] = fileNodeView
+        addToParentDirs(node.path, fileNodeView, 1)
+    }
+
+    fun remove(path: String) {
+        val oldFileNodeView = nodeViews.remove(path) as? FileNodeView ?: return
+        addToParentDirs(path, oldFileNodeView, -1)
+    }
+
+    private fun addToParentDirs(path: String, fileNodeView: FileNodeView, sign: Int) {
+        val size = sign * fileNodeView.size
+        var parentPath = PathUtil.getParentPath(path)
+        while (parentPath.isNotEmpty() && parentPath != projectDirPath) {
+            val dirNodeView = (nodeViews[parentPath] as? DirNodeView)?.copy() ?: DirNodeView()
+            when (fileNodeView.color) {
+                FileNodeViewColor.GREEN -> dirNodeView.greenSize += size
+                FileNodeViewColor.RED -> dirNodeView.redSize += size
+                FileNodeViewColor.YELLOW -> dirNodeView.yellowSize += size
+                else -> Unit
+            }
+            nodeViews[parentPath] = dirNodeView
+            parentPath = PathUtil.getParentPath(parentPath)
+        }
+    }
 }
+
+private fun DirNodeView.copy() = DirNodeView(greenSize, redSize, yellowSize)
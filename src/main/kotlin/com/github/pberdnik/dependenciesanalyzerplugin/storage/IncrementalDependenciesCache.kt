@@ -0,0 +1,57 @@
+package com.github.pberdnik.dependenciesanalyzerplugin.storage
+
+import com.github.pberdnik.dependenciesanalyzerplugin.old.file.CodeFile
+import com.intellij.analysis.AnalysisScope
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.vfs.LocalFileSystem
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.packageDependencies.actions.MyForwardDependenciesBuilder
+import com.intellij.util.PathUtil
+
+/**
+ * Reuses dependencies stored by the previous full analysis for files which haven't changed since.
+ *
+ * A stored file is analyzed again if its time stamp or length changed, if one of its dependencies changed or was removed
+ * (declarations could have moved) or if a new file appeared next to it (same package references resolve without imports).
+ * Dependency-only files are compared the same way, so an edit of a file outside the last analysis scope still makes its
+ * dependents analyzed again. Files whose time stamp wasn't stored count as changed.
+ */
+class IncrementalDependenciesCache(
+    codeFiles: Map<String, CodeFile>,
+    scope: AnalysisScope
+) : MyForwardDependenciesBuilder.DependenciesCache {
+    private val LOG = Logger.getInstance(IncrementalDependenciesCache::class.java)
+
+    private val fileSystem = LocalFileSystem.getInstance()
+    private val upToDate = mutableMapOf<String, List<String>>()
+
+    init {
+        val changed = mutableSetOf<String>()
+        codeFiles.values.forEach { codeFile ->
+            val file = fileSystem.findFileByPath(codeFile.path)
+            if (file == null || file.timeStamp != codeFile.stamp || file.length != codeFile.size) {
+                changed.add(codeFile.path)
+            }
+        }
+        val dirsWithNewFiles = mutableSetOf<String>()
+        scope.accept { file ->
+            if (codeFiles[file.path]?.dependencyOnly != false) {
+                dirsWithNewFiles.add(PathUtil.getParentPath(file.path))
+            }
+            true
+        }
+        codeFiles.values.forEach { codeFile ->
+            if (codeFile.dependencyOnly || codeFile.path in changed) return@forEach
+            if (PathUtil.getParentPath(codeFile.path) in dirsWithNewFiles) return@forEach
+            val dependencies = codeFile.dependencies ?: emptyList()
+            if (dependencies.any { it in changed }) return@forEach
+            upToDate[codeFile.path] = dependencies
+        }
+        LOG.info("Reusing dependencies of ${upToDate.size} of ${codeFiles.size} stored files, ${changed.size} changed")
+    }
+
+    override fun getDependencies(file: VirtualFile): Collection<VirtualFile>? {
+        val dependencies = upToDate[file.path] ?: return null
+        return dependencies.map { fileSystem.findFileByPath(it) ?: return null }
+    }
+}
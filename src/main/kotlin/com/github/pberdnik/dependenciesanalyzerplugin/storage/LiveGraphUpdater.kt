@@ -0,0 +1,180 @@
+package com.github.pberdnik.dependenciesanalyzerplugin.storage
+
+import com.github.pberdnik.dependenciesanalyzerplugin.actions.CodeFileConverter
+import com.github.pberdnik.dependenciesanalyzerplugin.old.file.CodeFile
+import com.intellij.analysis.AnalysisScope
+import com.intellij.ide.projectView.ProjectView
+import com.intellij.openapi.Disposable
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.application.ReadAction
+import com.intellij.openapi.components.ServiceManager
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.progress.EmptyProgressIndicator
+import com.intellij.openapi.progress.ProcessCanceledException
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.roots.ProjectFileIndex
+import com.intellij.openapi.startup.StartupActivity
+import com.intellij.openapi.vfs.VfsUtilCore
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.openapi.vfs.VirtualFileManager
+import com.intellij.openapi.vfs.newvfs.BulkFileListener
+import com.intellij.openapi.vfs.newvfs.events.*
+import com.intellij.packageDependencies.actions.MyForwardDependenciesBuilder
+import com.intellij.psi.PsiManager
+import com.intellij.psi.PsiTreeChangeAdapter
+import com.intellij.psi.PsiTreeChangeEvent
+import com.intellij.util.Alarm
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+
+private const val DEBOUNCE_MS = 1500
+
+/**
+ * Keeps the last analysis current while code is edited. Files changed in editors or on disk are collected until no
+ * change came for [DEBOUNCE_MS], then only those files are analyzed again in a non-blocking read action and patched
+ * into the stored graph and the published analysis, see [GraphStorageService.updateFiles].
+ *
+ * Nothing is collected before the first analysis of the project or when live updates are turned off. After a restart
+ * the stored graph is analyzed again by the first update, before the changes are patched into it.
+ */
+class LiveGraphUpdater(private val project: Project) : Disposable {
+    private val LOG = Logger.getInstance(LiveGraphUpdater::class.java)
+
+    private val storage = GraphStorageService.getInstance(project)
+    private val changedFiles = ConcurrentHashMap.newKeySet<VirtualFile>()
+    private val removedPaths = ConcurrentHashMap.newKeySet<String>()
+    private val removedDirs = ConcurrentHashMap.newKeySet<String>()
+    private val alarm = Alarm(Alarm.ThreadToUse.POOLED_THREAD, this)
+
+    init {
+        project.messageBus.connect(this).subscribe(VirtualFileManager.VFS_CHANGES, object : BulkFileListener {
+            override fun before(events: List<VFileEvent>) {
+                if (!isEnabled()) return
+                events.forEach { event ->
+                    val removed = event is VFileDeleteEvent || event is VFileMoveEvent ||
+                        event is VFilePropertyChangeEvent && event.isRename
+                    val file = event.file
+                    if (removed && file != null) {
+                        if (file.isDirectory) removedDirs.add(event.path) else removedPaths.add(event.path)
+                    }
+                }
+            }
+
+            override fun after(events: List<VFileEvent>) {
+                if (!isEnabled()) return
+                events.forEach { event ->
+                    val changed = event is VFileContentChangeEvent || event is VFileCreateEvent || event is VFileMoveEvent ||
+                        event is VFilePropertyChangeEvent && event.isRename
+                    val file = event.file
+                    if (changed && file != null) fileChanged(file)
+                }
+                schedule()
+            }
+        })
+        PsiManager.getInstance(project).addPsiTreeChangeListener(object : PsiTreeChangeAdapter() {
+            override fun childrenChanged(event: PsiTreeChangeEvent) {
+                if (!isEnabled()) return
+                val file = event.file?.virtualFile ?: return
+                fileChanged(file)
+                schedule()
+            }
+        }, this)
+    }
+
+    private fun isEnabled() = storage.graphConfig.graphConfigState.liveUpdates && storage.hasStoredGraph
+
+    private fun fileChanged(file: VirtualFile) {
+        if (!file.isValid || !file.isInLocalFileSystem || !file.path.startsWith(storage.graphConfig.projectDir)) return
+        if (file.isDirectory) {
+            VfsUtilCore.iterateChildrenRecursively(file, null) {
+                if (!it.isDirectory) changedFiles.add(it)
+                true
+            }
+        } else {
+            changedFiles.add(file)
+        }
+    }
+
+    private fun schedule() {
+        if (changedFiles.isEmpty() && removedPaths.isEmpty() && removedDirs.isEmpty()) return
+        alarm.cancelAllRequests()
+        alarm.addRequest(::flush, DEBOUNCE_MS)
+    }
+
+    @Synchronized
+    private fun flush() {
+        val files = changedFiles.toList().also { changedFiles.removeAll(it.toSet()) }
+        val removed = HashSet(removedPaths.toList().also { removedPaths.removeAll(it.toSet()) })
+        val dirs = removedDirs.toList().also { removedDirs.removeAll(it.toSet()) }
+        if (!storage.isAnalysisPublished) {
+            storage.analyze(EmptyProgressIndicator())
+        }
+        if (dirs.isNotEmpty()) {
+            storage.dependencyGraph.nodes.keys.filterTo(removed) { path -> dirs.any { path.startsWith("$it/") } }
+        }
+        if (files.isEmpty() && removed.isEmpty()) return
+        if (storage.isWritingGraph) {
+            retryLater(files, removed)
+            return
+        }
+
+        val start = System.nanoTime()
+        val converter = CodeFileConverter(storage.graphConfig)
+        val changed = try {
+            ReadAction.nonBlocking(Callable { analyze(files, converter) })
+                .inSmartMode(project)
+                .expireWith(this)
+                .executeSynchronously()
+        } catch (e: ProcessCanceledException) {
+            return
+        }
+        removed.removeAll(changed.map { it.path }.toSet())
+        if (!storage.updateFiles(changed, converter.dependencyOnlyFiles(), removed, converter.analysisFingerprint)) {
+            retryLater(files, removed)
+            return
+        }
+        LOG.debug("Updated ${changed.size} changed and ${removed.size} removed files in ${TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)} ms")
+        ApplicationManager.getApplication().invokeLater({ ProjectView.getInstance(project).refresh() }, project.disposed)
+    }
+
+    /**
+     * Collects changes again while an analysis writes its graph, they are applied once it is stored. The analysis may have
+     * read the files before they changed.
+     */
+    private fun retryLater(files: Collection<VirtualFile>, removed: Collection<String>) {
+        changedFiles.addAll(files)
+        removedPaths.addAll(removed)
+        schedule()
+    }
+
+    private fun analyze(files: List<VirtualFile>, converter: CodeFileConverter): List<CodeFile> {
+        val fileIndex = ProjectFileIndex.getInstance(project)
+        val sourceFiles = files.filter { it.isValid && fileIndex.isInSourceContent(it) }
+        if (sourceFiles.isEmpty()) return emptyList()
+        val builder = MyForwardDependenciesBuilder(project, AnalysisScope(project, sourceFiles))
+        builder.setFileFilter { !converter.isFiltered(it) }
+        builder.setFastMode(storage.graphConfig.graphConfigState.fastMode)
+        builder.setDropResolveCaches(false)
+        builder.analyze()
+        return builder.directDependencies.mapNotNull { (file, deps) -> converter.convert(file, deps) }
+    }
+
+    override fun dispose() {
+    }
+
+    /**
+     * Starts listening when a project is opened.
+     */
+    class Starter : StartupActivity.DumbAware {
+        override fun runActivity(project: Project) {
+            getInstance(project)
+        }
+    }
+
+    companion object {
+        fun getInstance(project: Project): LiveGraphUpdater {
+            return ServiceManager.getService(project, LiveGraphUpdater::class.java)
+        }
+    }
+}
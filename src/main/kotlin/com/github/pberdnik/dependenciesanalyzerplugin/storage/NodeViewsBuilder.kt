@@ -0,0 +1,43 @@
+package com.github.pberdnik.dependenciesanalyzerplugin.storage
+
+import com.github.pberdnik.dependenciesanalyzerplugin.old.graph.Color
+import com.github.pberdnik.dependenciesanalyzerplugin.old.graph.Node
+import com.github.pberdnik.dependenciesanalyzerplugin.views.FileNodeView
+import com.github.pberdnik.dependenciesanalyzerplugin.views.FileNodeViewColor
+import com.github.pberdnik.dependenciesanalyzerplugin.views.NodeView
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.vfs.VirtualFile
+
+/**
+ * Project view decorations of one analysis: a [FileNodeView] per analyzed file and a summed up directory view per
+ * directory above it, up to [projectDir].
+ */
+class NodeViewsBuilder(projectDir: VirtualFile?) {
+    private val LOG = Logger.getInstance(NodeViewsBuilder::class.java)
+
+    private val nodeViews = HashMap<String, NodeView>()
+    private val directoryTree = DirectoryTree(projectDir)
+
+    fun add(node: Node, virtualFile: VirtualFile) {
+        val path = virtualFile.path
+        val fileNodeView = node.asFileNodeView()
+        if (nodeViews.containsKey(path)) {
+            LOG.error("nodeViews already contains path [$path] with value: ${nodeViews[path]}")
+        }
+        nodeViews[path] = fileNodeView
+        directoryTree.add(virtualFile, fileNodeView)
+    }
+
+    fun build(): HashMap<String, NodeView> {
+        directoryTree.aggregate(nodeViews)
+        return nodeViews
+    }
+}
+
+internal fun Node.asFileNodeView() = FileNodeView(asNodeViewColor(), codeFile.size / 50, depth, cycle != null)
+
+private fun Node.asNodeViewColor() = when {
+    color == Color.GREEN -> FileNodeViewColor.GREEN
+    color == Color.RED -> if (onlyRed != null) FileNodeViewColor.YELLOW else FileNodeViewColor.RED
+    else -> FileNodeViewColor.GRAY
+}
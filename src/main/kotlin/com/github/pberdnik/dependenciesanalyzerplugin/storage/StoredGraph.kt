@@ -0,0 +1,146 @@
+package com.github.pberdnik.dependenciesanalyzerplugin.storage
+
+import com.github.pberdnik.dependenciesanalyzerplugin.old.file.CodeFile
+import com.intellij.openapi.diagnostic.Logger
+import java.io.IOException
+import java.lang.ref.SoftReference
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Stored graph partitioned by module. Opening it reads only the shard index. Code files of a module are read from its
+ * shards the first time they are needed. They are kept through soft references, so modules nobody looks at can be
+ * dropped under memory pressure and read again later.
+ *
+ * Shards are listed in write order. When a path occurs in several shards, as after recovering an interrupted analysis
+ * or after files were [appended], the last one wins, and a removed shard takes its paths out again.
+ *
+ * [fingerprint] identifies the settings all its files were analyzed with, it is null if they aren't known or differ.
+ */
+class StoredGraph private constructor(
+    private val shards: Map<String, List<StoredShard>>,
+    private val resident: Map<String, Map<String, CodeFile>>,
+    val filesCount: Int,
+    val fingerprint: String?,
+    private val dirs: List<Path> = emptyList(),
+    private val cache: ConcurrentHashMap<String, SoftReference<MutableMap<String, CodeFile>>> = ConcurrentHashMap()
+) {
+    private val LOG = Logger.getInstance(StoredGraph::class.java)
+
+    val modules: Set<String> get() = shards.keys + resident.keys
+
+    /**
+     * Code files of [module], read on first access.
+     */
+    fun codeFiles(module: String): Map<String, CodeFile> {
+        resident[module]?.let { return it }
+        cache[module]?.get()?.let { return it }
+        val codeFiles = ConcurrentHashMap<String, CodeFile>()
+        shards[module]?.forEach { shard ->
+            try {
+                if (shard.removed) {
+                    Files.readAllLines(shard.path).forEach { codeFiles.remove(it) }
+                } else {
+                    codeFiles.putAll(BinaryGraphFormat.read(shard.path).toCodeFiles())
+                }
+            } catch (e: IOException) {
+                LOG.warn("Can't read graph shard ${shard.path}", e)
+            }
+        }
+        cache[module] = SoftReference(codeFiles)
+        return codeFiles
+    }
+
+    /**
+     * Code files of all modules in a new map, which the caller may change.
+     */
+    fun codeFiles(): MutableMap<String, CodeFile> {
+        val codeFiles = HashMap<String, CodeFile>(filesCount * 4 / 3 + 1)
+        modules.forEach { codeFiles.putAll(codeFiles(it)) }
+        return codeFiles
+    }
+
+    /**
+     * Writes this graph into [writer] with [changed] files put over the stored ones and [removed] paths left out. Only
+     * modules of changed files, [removedModules] and modules with delta shards are read and written again, shards of
+     * other modules are copied.
+     */
+    fun writeUpdated(writer: GraphShardWriter, changed: Collection<CodeFile>, removed: Collection<String>, removedModules: Collection<String>) {
+        val changedByModule = changed.groupBy { it.module }
+        val updatedModules = changedByModule.keys + removedModules + shards.filterValues { moduleShards -> moduleShards.any { it.isDelta } }.keys
+        modules.filter { it !in updatedModules }.forEach { module ->
+            val moduleShards = shards[module]
+            if (moduleShards != null) {
+                moduleShards.forEach { writer.copyShard(module, it.path, it.filesCount) }
+            } else {
+                codeFiles(module).values.forEach { writer.add(it) }
+            }
+        }
+        updatedModules.forEach { module ->
+            val codeFiles = HashMap(codeFiles(module))
+            removed.forEach { codeFiles.remove(it) }
+            changedByModule[module]?.forEach { codeFiles[it.path] = it }
+            codeFiles.values.forEach { writer.add(it) }
+        }
+    }
+
+    /**
+     * Whether files can be [appended] to this graph in [dir]: it is read from that directory alone, and not too many
+     * delta shards were appended to it already.
+     */
+    fun canAppend(dir: Path) = dirs == listOf(dir) && resident.isEmpty() && shards.values.sumOf { moduleShards -> moduleShards.count { it.isDelta } } < MAX_DELTA_SHARDS
+
+    /**
+     * Appends [changed] files and [removed] paths, grouped by module, to this graph in [dir], see [GraphShardWriter.append].
+     * Modules already read are patched in place, the others are read with the new shards when they are asked for.
+     *
+     * @return the graph with the appended shards, this one shouldn't be used any more
+     */
+    @Throws(IOException::class)
+    fun appended(dir: Path, changed: Collection<CodeFile>, removed: Map<String, List<String>>, fingerprint: String?): StoredGraph {
+        val changedByModule = changed.groupBy { it.module }
+        val appended = GraphShardWriter.append(dir, changedByModule, removed, fingerprint)
+        val newShards = LinkedHashMap<String, List<StoredShard>>(shards)
+        appended.forEach { shard ->
+            newShards[shard.module] = (newShards[shard.module] ?: emptyList()) + StoredShard(dir.resolve(shard.fileName), shard.filesCount, shard)
+        }
+        removed.forEach { (module, paths) -> cache[module]?.get()?.let { codeFiles -> paths.forEach { codeFiles.remove(it) } } }
+        changedByModule.forEach { (module, moduleFiles) -> cache[module]?.get()?.let { codeFiles -> moduleFiles.forEach { codeFiles[it.path] = it } } }
+        val filesCount = filesCount + changed.size - removed.values.sumOf { it.size }
+        return StoredGraph(newShards, resident, filesCount, fingerprint?.takeIf { it == this.fingerprint }, dirs, cache)
+    }
+
+    companion object {
+        val EMPTY = StoredGraph(emptyMap(), emptyMap(), 0, null)
+
+        /**
+         * Index of the shards in [dirs], later directories override earlier ones.
+         */
+        fun read(dirs: List<Path>): StoredGraph {
+            val shards = LinkedHashMap<String, MutableList<StoredShard>>()
+            var filesCount = 0
+            dirs.forEach { dir ->
+                GraphShardWriter.readShards(dir).forEach { shard ->
+                    shards.getOrPut(shard.module) { ArrayList() }.add(StoredShard(dir.resolve(shard.fileName), shard.filesCount, shard))
+                    filesCount += if (shard.removed) -shard.filesCount else shard.filesCount
+                }
+            }
+            val fingerprints = dirs.map { GraphShardWriter.readFingerprint(it) }.distinct()
+            return StoredGraph(shards, emptyMap(), filesCount, fingerprints.singleOrNull(), dirs)
+        }
+
+        /**
+         * Graph which exists only in memory, like one of an older format waiting to be written as shards.
+         */
+        fun inMemory(codeFiles: Map<String, CodeFile>): StoredGraph {
+            val resident = codeFiles.values.groupBy { it.module }.mapValues { (_, moduleFiles) -> moduleFiles.associateBy { it.path } }
+            return StoredGraph(emptyMap(), resident, codeFiles.size, null)
+        }
+    }
+}
+
+internal class StoredShard(val path: Path, val filesCount: Int, shard: GraphShard) {
+    val isDelta = shard.isDelta
+    val removed = shard.removed
+}
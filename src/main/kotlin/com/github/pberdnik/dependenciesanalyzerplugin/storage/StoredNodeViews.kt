@@ -0,0 +1,150 @@
+package com.github.pberdnik.dependenciesanalyzerplugin.storage
+
+import com.github.pberdnik.dependenciesanalyzerplugin.views.DirNodeView
+import com.github.pberdnik.dependenciesanalyzerplugin.views.FileNodeView
+import com.github.pberdnik.dependenciesanalyzerplugin.views.FileNodeViewColor
+import com.github.pberdnik.dependenciesanalyzerplugin.views.NodeView
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.module.ModuleUtil
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.util.io.FileUtil
+import com.intellij.openapi.vfs.VirtualFile
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.IOException
+import java.lang.ref.SoftReference
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.util.concurrent.ConcurrentHashMap
+
+private const val MAGIC = 0x44415657 // "DAVW"
+private const val VERSION = 1
+private const val DIRS_FILE = "dirs.views"
+
+private val FILE_NODE_VIEW_COLORS = FileNodeViewColor.values()
+
+/**
+ * Node views of the last published analysis, stored by module in [dir] so that the project view shows them after a
+ * restart without reading and processing the whole graph. Views of a module are read the first time a file of that
+ * module is looked up, directory views the first time a directory is. They are kept through soft references, like
+ * modules of the [StoredGraph].
+ */
+class StoredNodeViews(private val project: Project, private val dir: Path) {
+    private val LOG = Logger.getInstance(StoredNodeViews::class.java)
+
+    private val modules = ConcurrentHashMap<String, SoftReference<Map<String, NodeView>>>()
+    @Volatile
+    private var dirs: SoftReference<Map<String, NodeView>>? = null
+
+    /**
+     * Stored view of [file], whose module is looked up in the project model.
+     */
+    fun get(file: VirtualFile): NodeView? {
+        if (file.isDirectory) {
+            val dirViews = dirs?.get() ?: read(dir.resolve(DIRS_FILE)).also { dirs = SoftReference(it) }
+            return dirViews[file.path]
+        }
+        val module = ModuleUtil.findModuleForFile(file, project)?.name ?: ""
+        val moduleViews = modules[module]?.get() ?: read(moduleFile(module)).also { modules[module] = SoftReference(it) }
+        return moduleViews[file.path]
+    }
+
+    /**
+     * Replaces all stored views with [nodeViews], whose files are grouped by module in [pathsByModule].
+     */
+    @Synchronized
+    fun writeAll(nodeViews: Map<String, NodeView>, pathsByModule: Map<String, Collection<String>>) {
+        FileUtil.delete(dir)
+        write(nodeViews, pathsByModule)
+    }
+
+    /**
+     * Stores views of the files in [pathsByModule] again, for modules whose views changed, together with all directory
+     * views. Views of other modules stay as they are.
+     */
+    @Synchronized
+    fun write(nodeViews: Map<String, NodeView>, pathsByModule: Map<String, Collection<String>>) {
+        try {
+            Files.createDirectories(dir)
+            pathsByModule.forEach { (module, paths) ->
+                write(moduleFile(module), paths.mapNotNull { path -> nodeViews[path]?.let { path to it } })
+                modules.remove(module)
+            }
+            write(dir.resolve(DIRS_FILE), nodeViews.entries.filter { it.value is DirNodeView }.map { it.key to it.value })
+            dirs = null
+        } catch (e: IOException) {
+            LOG.warn("Can't save node views to $dir", e)
+        }
+    }
+
+    /**
+     * Drops the stored views, like when they belong to a graph which is no longer the stored one.
+     */
+    @Synchronized
+    fun clear() {
+        FileUtil.delete(dir)
+        modules.clear()
+        dirs = null
+    }
+
+    private fun moduleFile(module: String) =
+        dir.resolve("${module.replace(UNSAFE_FILE_NAME_CHARS, "_")}-${Integer.toHexString(module.hashCode())}.views")
+
+    private fun read(path: Path): Map<String, NodeView> {
+        if (!Files.exists(path)) return emptyMap()
+        return try {
+            DataInputStream(BufferedInputStream(Files.newInputStream(path), 1 shl 16)).use { input ->
+                if (input.readInt() != MAGIC || input.readInt() != VERSION) throw IOException("Unsupported node views file: $path")
+                val count = input.readInt()
+                val views = HashMap<String, NodeView>(count * 4 / 3 + 1)
+                repeat(count) {
+                    val path = input.readUTF()
+                    views[path] = if (input.readBoolean()) {
+                        DirNodeView(input.readLong(), input.readLong(), input.readLong())
+                    } else {
+                        FileNodeView(FILE_NODE_VIEW_COLORS[input.readByte().toInt()], input.readLong(), input.readInt(), input.readBoolean())
+                    }
+                }
+                views
+            }
+        } catch (e: IOException) {
+            LOG.warn("Can't read node views from $path", e)
+            emptyMap()
+        }
+    }
+
+    private fun write(path: Path, views: List<Pair<String, NodeView>>) {
+        val tmp = path.resolveSibling(path.fileName.toString() + ".tmp")
+        DataOutputStream(BufferedOutputStream(Files.newOutputStream(tmp), 1 shl 16)).use { out ->
+            out.writeInt(MAGIC)
+            out.writeInt(VERSION)
+            out.writeInt(views.size)
+            views.forEach { (viewPath, view) ->
+                out.writeUTF(viewPath)
+                when (view) {
+                    is DirNodeView -> {
+                        out.writeBoolean(true)
+                        out.writeLong(view.greenSize)
+                        out.writeLong(view.redSize)
+                        out.writeLong(view.yellowSize)
+                    }
+                    is FileNodeView -> {
+                        out.writeBoolean(false)
+                        out.writeByte(view.color.ordinal)
+                        out.writeLong(view.size)
+                        out.writeInt(view.depth)
+                        out.writeBoolean(view.isCycle)
+                    }
+                }
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    }
+
+    companion object {
+        private val UNSAFE_FILE_NAME_CHARS = Regex("[^A-Za-z0-9._-]")
+    }
+}
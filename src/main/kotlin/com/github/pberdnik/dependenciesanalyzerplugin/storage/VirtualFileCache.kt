@@ -0,0 +1,47 @@
+package com.github.pberdnik.dependenciesanalyzerplugin.storage
+
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.openapi.vfs.VirtualFileManager
+import com.intellij.openapi.vfs.newvfs.BulkFileListener
+import com.intellij.openapi.vfs.newvfs.events.VFileDeleteEvent
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent
+import com.intellij.openapi.vfs.newvfs.events.VFileMoveEvent
+import com.intellij.openapi.vfs.newvfs.events.VFilePropertyChangeEvent
+import java.nio.file.Paths
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Path to [VirtualFile] lookups of graph nodes. Entries of deleted, moved and renamed files and of everything under them
+ * are dropped on VFS events, so a cached file is always the one currently found at its path.
+ */
+class VirtualFileCache(project: Project) {
+    private val virtualFileManager = VirtualFileManager.getInstance()
+    private val files = ConcurrentHashMap<String, VirtualFile>()
+
+    init {
+        project.messageBus.connect(project).subscribe(VirtualFileManager.VFS_CHANGES, object : BulkFileListener {
+            override fun before(events: List<VFileEvent>) {
+                val removedPaths = events.mapNotNull { event ->
+                    when {
+                        event is VFileDeleteEvent || event is VFileMoveEvent -> event.path
+                        event is VFilePropertyChangeEvent && event.isRename -> event.path
+                        else -> null
+                    }
+                }
+                if (removedPaths.isNotEmpty()) invalidate(removedPaths)
+            }
+        })
+    }
+
+    fun find(path: String): VirtualFile? {
+        files[path]?.let { if (it.isValid) return it }
+        val virtualFile = virtualFileManager.findFileByNioPath(Paths.get(path)) ?: return null
+        files[path] = virtualFile
+        return virtualFile
+    }
+
+    private fun invalidate(removedPaths: List<String>) {
+        files.keys.removeIf { path -> removedPaths.any { path == it || path.startsWith("$it/") } }
+    }
+}
@@ -0,0 +1,154 @@
+package com.github.pberdnik.dependenciesanalyzerplugin.toolwindow
+
+import com.github.pberdnik.dependenciesanalyzerplugin.storage.AnalysisMetrics
+import com.github.pberdnik.dependenciesanalyzerplugin.storage.AnalysisStats
+import com.github.pberdnik.dependenciesanalyzerplugin.storage.AnalysisStatsListener
+import com.github.pberdnik.dependenciesanalyzerplugin.storage.GraphStorageService
+import com.github.pberdnik.dependenciesanalyzerplugin.views.DecorationCache
+import com.intellij.icons.AllIcons
+import com.intellij.openapi.Disposable
+import com.intellij.openapi.actionSystem.ActionManager
+import com.intellij.openapi.actionSystem.AnAction
+import com.intellij.openapi.actionSystem.AnActionEvent
+import com.intellij.openapi.actionSystem.DefaultActionGroup
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.fileChooser.FileChooserFactory
+import com.intellij.openapi.fileChooser.FileSaverDescriptor
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.ui.Messages
+import com.intellij.ui.JBIntSpinner
+import com.intellij.ui.ScrollPaneFactory
+import com.intellij.ui.components.JBLabel
+import com.intellij.ui.table.JBTable
+import com.intellij.util.ui.JBUI
+import java.awt.BorderLayout
+import java.awt.FlowLayout
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.text.DateFormat
+import java.util.*
+import java.util.concurrent.TimeUnit
+import javax.swing.JComponent
+import javax.swing.JPanel
+import javax.swing.JSplitPane
+import javax.swing.table.DefaultTableModel
+
+private val PHASE_COLUMNS = arrayOf("Phase", "Time, ms", "Count", "Allocated, MB")
+private val PHASE_COLUMN_CLASSES = arrayOf<Class<*>>(String::class.java, java.lang.Double::class.java, java.lang.Long::class.java, java.lang.Double::class.java)
+private val FILE_COLUMNS = arrayOf("Slowest file", "Resolution, ms", "References", "Dependencies")
+private val FILE_COLUMN_CLASSES = arrayOf<Class<*>>(String::class.java, java.lang.Double::class.java, java.lang.Integer::class.java, java.lang.Integer::class.java)
+
+/**
+ * Stats of the last analysis: files per second, dependencies found, time and allocation of every phase and the files
+ * which took longest to resolve. Refreshed whenever an analysis publishes its stats, and exportable as JSON to compare
+ * runs across plugin versions.
+ *
+ * Selected slow files can be excluded from later analyses, or all files over a time budget after every analysis.
+ */
+class AnalysisStatsPanel(private val project: Project) : JPanel(BorderLayout()), Disposable {
+    private val summaryLabel = JBLabel("No analysis has finished since the project was opened")
+    private val graphConfig = GraphStorageService.getInstance(project).graphConfig
+    private val phasesModel = readOnlyModel(PHASE_COLUMNS, PHASE_COLUMN_CLASSES)
+    private val filesModel = readOnlyModel(FILE_COLUMNS, FILE_COLUMN_CLASSES)
+    private val filesTable = JBTable(filesModel)
+    private var stats: AnalysisStats? = null
+
+    init {
+        summaryLabel.border = JBUI.Borders.empty(4)
+        val header = JPanel(BorderLayout())
+        header.add(createToolbar(), BorderLayout.NORTH)
+        header.add(summaryLabel, BorderLayout.CENTER)
+        add(header, BorderLayout.NORTH)
+        val phasesTable = JBTable(phasesModel)
+        phasesTable.autoCreateRowSorter = true
+        filesTable.autoCreateRowSorter = true
+        val splitPane = JSplitPane(JSplitPane.VERTICAL_SPLIT,
+            ScrollPaneFactory.createScrollPane(phasesTable),
+            ScrollPaneFactory.createScrollPane(filesTable))
+        splitPane.resizeWeight = 0.5
+        add(splitPane, BorderLayout.CENTER)
+        add(createBudgetPanel(), BorderLayout.SOUTH)
+
+        project.messageBus.connect(this).subscribe(AnalysisMetrics.TOPIC, AnalysisStatsListener { stats ->
+            ApplicationManager.getApplication().invokeLater({ show(stats) }, project.disposed)
+        })
+        GraphStorageService.getInstance(project).lastAnalysisStats?.let { show(it) }
+    }
+
+    private fun show(stats: AnalysisStats) {
+        this.stats = stats
+        val decorations = DecorationCache.getInstance(project)
+        summaryLabel.text = "Analysis of ${DateFormat.getDateTimeInstance().format(Date(stats.startedAt))}: " +
+            "${stats.filesCount} files, ${stats.edgesCount} dependencies, " +
+            "${"%.1f".format(stats.filesPerSecond)} files/s, ${stats.wallMillis} ms wall time. " +
+            "Project view: ${decorations.decorateCount.sum()} decorations, ${decorations.missCount.sum()} misses, " +
+            "${TimeUnit.NANOSECONDS.toMillis(decorations.decorateNanos.sum())} ms" +
+            if (stats.excludedFiles.isNotEmpty()) ". Excluded ${stats.excludedFiles.size} slow files" else ""
+        phasesModel.rowCount = 0
+        stats.phases.forEach {
+            phasesModel.addRow(arrayOf(it.name, round(it.millis), it.count, round(it.allocatedBytes / (1024.0 * 1024.0))))
+        }
+        filesModel.rowCount = 0
+        stats.slowestFiles.forEach { filesModel.addRow(arrayOf(it.path, round(it.resolveMillis), it.references, it.dependencies)) }
+    }
+
+    private fun round(value: Double) = Math.round(value * 10) / 10.0
+
+    private fun createBudgetPanel(): JComponent {
+        val budgetPanel = JPanel(FlowLayout(FlowLayout.LEFT))
+        val state = graphConfig.graphConfigState
+        val budgetSpinner = JBIntSpinner(state.slowFileBudgetMs, 0, Int.MAX_VALUE, 100)
+        budgetSpinner.addChangeListener { state.slowFileBudgetMs = budgetSpinner.number }
+        budgetPanel.add(JBLabel("Exclude files slower to resolve than (ms, 0 is off):"))
+        budgetPanel.add(budgetSpinner)
+        return budgetPanel
+    }
+
+    private fun createToolbar(): JComponent {
+        val group = DefaultActionGroup()
+        group.add(ExcludeAction())
+        group.add(ExportAction())
+        val toolbar = ActionManager.getInstance().createActionToolbar("DependenciesAnalysisStats", group, true)
+        toolbar.targetComponent = this
+        return toolbar.component
+    }
+
+    private inner class ExcludeAction : AnAction("Exclude Selected Files", "Leave selected files out of later analyses", AllIcons.Actions.Cancel) {
+        override fun update(e: AnActionEvent) {
+            e.presentation.isEnabled = filesTable.selectedRowCount > 0
+        }
+
+        override fun actionPerformed(e: AnActionEvent) {
+            val paths = filesTable.selectedRows.map { filesModel.getValueAt(filesTable.convertRowIndexToModel(it), 0) as String }
+            graphConfig.addFilteredClasses(paths.map { it.removePrefix(graphConfig.projectDir) })
+        }
+    }
+
+    private inner class ExportAction : AnAction("Export as JSON", "Export stats of the last analysis as JSON", AllIcons.ToolbarDecorator.Export) {
+        override fun update(e: AnActionEvent) {
+            e.presentation.isEnabled = stats != null
+        }
+
+        override fun actionPerformed(e: AnActionEvent) {
+            val stats = stats ?: return
+            val descriptor = FileSaverDescriptor("Export Analysis Stats", "Export stats of the last analysis as JSON", "json")
+            val target = FileChooserFactory.getInstance().createSaveFileDialog(descriptor, project)
+                .save(null as Path?, "dependencies-analysis-stats.json") ?: return
+            try {
+                Files.writeString(target.file.toPath(), stats.toJson())
+            } catch (e: IOException) {
+                Messages.showErrorDialog(project, e.message, "Export Analysis Stats")
+            }
+        }
+    }
+
+    override fun dispose() {
+    }
+
+    private fun readOnlyModel(columns: Array<String>, columnClasses: Array<Class<*>>) = object : DefaultTableModel(columns, 0) {
+        override fun isCellEditable(row: Int, column: Int) = false
+
+        override fun getColumnClass(column: Int) = columnClasses[column]
+    }
+}
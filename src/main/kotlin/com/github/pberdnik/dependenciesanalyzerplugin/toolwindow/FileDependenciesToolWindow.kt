@@ -11,6 +11,7 @@ import com.intellij.ui.content.ContentFactory
 import com.intellij.ui.content.ContentManager
 
 private const val GREEN_MODULES = "Green Modules"
+private const val ANALYSIS_STATS = "Last Analysis Stats"
 
 class FileDependenciesToolWindow(private val project: Project) {
     private val LOG = Logger.getInstance(FileDependenciesToolWindow::class.java)
@@ -25,6 +26,11 @@ class FileDependenciesToolWindow(private val project: Project) {
             val panel = ModulesPanel(project)
             val content = ContentFactory.getInstance().createContent(panel, GREEN_MODULES, false)
             addContent(content)
+
+            val statsPanel = AnalysisStatsPanel(project)
+            val statsContent = ContentFactory.getInstance().createContent(statsPanel, ANALYSIS_STATS, false)
+            statsContent.setDisposer(statsPanel)
+            toolWindow.contentManager.addContent(statsContent)
         }
     }
 
@@ -42,7 +48,7 @@ class FileDependenciesToolWindow(private val project: Project) {
     private fun removeContentsExceptModules(contentManager: ContentManager) {
         val contents = contentManager.contents.clone()
         contents.forEach { content ->
-            if (!content.displayName.equals(GREEN_MODULES)) {
+            if (!content.displayName.equals(GREEN_MODULES) && !content.displayName.equals(ANALYSIS_STATS)) {
                 contentManager.removeContent(content, true)
             }
         }
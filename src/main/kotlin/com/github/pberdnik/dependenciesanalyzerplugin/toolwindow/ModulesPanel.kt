@@ -1,8 +1,10 @@
 package com.github.pberdnik.dependenciesanalyzerplugin.toolwindow
 
+import com.github.pberdnik.dependenciesanalyzerplugin.actions.CompareFastModeAction
 import com.github.pberdnik.dependenciesanalyzerplugin.actions.GraphAnalysisAction
 import com.github.pberdnik.dependenciesanalyzerplugin.panel.FileDependenciesPanel
 import com.github.pberdnik.dependenciesanalyzerplugin.storage.GraphConfigStorageService
+import com.github.pberdnik.dependenciesanalyzerplugin.storage.GraphStorageService
 import com.github.pberdnik.dependenciesanalyzerplugin.toolwindow.FileDependenciesToolWindow.Companion.getInstance
 import com.intellij.CommonBundle
 import com.intellij.analysis.AnalysisScope
@@ -13,9 +15,15 @@ import com.intellij.openapi.module.ModuleManager
 import com.intellij.openapi.project.Project
 import com.intellij.packageDependencies.actions.AnalyzeDependenciesHandler
 import com.intellij.packageDependencies.actions.MyAnalyzeDependenciesAction
+import com.intellij.ui.JBIntSpinner
 import com.intellij.ui.ScrollPaneFactory
 import com.intellij.ui.components.JBCheckBox
+import com.intellij.ui.components.JBLabel
+import com.intellij.ui.components.JBTextField
 import java.awt.BorderLayout
+import java.awt.FlowLayout
+import java.awt.event.FocusAdapter
+import java.awt.event.FocusEvent
 import java.awt.event.ItemEvent
 import javax.swing.BoxLayout
 import javax.swing.JComponent
@@ -30,20 +38,52 @@ class ModulesPanel(val project: Project) : JPanel(BorderLayout()) {
         modulesPanel.layout = BoxLayout(modulesPanel, BoxLayout.Y_AXIS)
         add(createToolbar(), BorderLayout.NORTH)
         add(ScrollPaneFactory.createScrollPane(modulesPanel), BorderLayout.CENTER)
+        add(createSettingsPanel(), BorderLayout.SOUTH)
         ModuleManager.getInstance(project).modules.sortedBy { it.name }.forEach { module ->
             val name = module.name
             val checkBox = JBCheckBox(name, graphConfig.greenModules.contains(name))
             checkBox.addItemListener { itemEvent ->
                 if (itemEvent.stateChange == ItemEvent.SELECTED) {
-                    graphConfig.greenModules.add(name)
+                    GraphStorageService.getInstance(project).setGreenModule(name, true)
                 } else if (itemEvent.stateChange == ItemEvent.DESELECTED) {
-                    graphConfig.greenModules.remove(name)
+                    GraphStorageService.getInstance(project).setGreenModule(name, false)
                 }
             }
             modulesPanel.add(checkBox)
         }
     }
 
+    private fun createSettingsPanel(): JComponent {
+        val settingsPanel = JPanel(FlowLayout(FlowLayout.LEFT))
+        val maxThreads = Runtime.getRuntime().availableProcessors()
+        val threadsSpinner = JBIntSpinner(graphConfig.analysisThreads.coerceIn(1, maxThreads), 1, maxThreads)
+        threadsSpinner.addChangeListener { graphConfig.analysisThreads = threadsSpinner.number }
+        settingsPanel.add(JBLabel("Analysis threads:"))
+        settingsPanel.add(threadsSpinner)
+        val incrementalCheckBox = JBCheckBox("Reuse unchanged files", graphConfig.incrementalAnalysis)
+        incrementalCheckBox.addItemListener { graphConfig.incrementalAnalysis = incrementalCheckBox.isSelected }
+        settingsPanel.add(incrementalCheckBox)
+        val fastModeCheckBox = JBCheckBox("Fast mode (imports only)", graphConfig.fastMode)
+        fastModeCheckBox.addItemListener { graphConfig.fastMode = fastModeCheckBox.isSelected }
+        settingsPanel.add(fastModeCheckBox)
+        val boundedMemoryCheckBox = JBCheckBox("Bounded memory", graphConfig.boundedMemory)
+        boundedMemoryCheckBox.addItemListener { graphConfig.boundedMemory = boundedMemoryCheckBox.isSelected }
+        settingsPanel.add(boundedMemoryCheckBox)
+        val storage = GraphStorageService.getInstance(project)
+        val redClassesField = JBTextField(storage.graphConfig.redClasses.sorted().joinToString(", "), 20)
+        redClassesField.toolTipText = "File names of classes which are never mobile, separated by commas"
+        fun applyRedClasses() {
+            storage.setRedClasses(redClassesField.text.split(',').map { it.trim() }.filter { it.isNotEmpty() }.toSet())
+        }
+        redClassesField.addActionListener { applyRedClasses() }
+        redClassesField.addFocusListener(object : FocusAdapter() {
+            override fun focusLost(e: FocusEvent) = applyRedClasses()
+        })
+        settingsPanel.add(JBLabel("Red classes:"))
+        settingsPanel.add(redClassesField)
+        return settingsPanel
+    }
+
     private fun createToolbar(): JComponent {
         val group = DefaultActionGroup()
         val myAnalyzeDependenciesAction = MyAnalyzeDependenciesAction()
@@ -54,6 +94,7 @@ class ModulesPanel(val project: Project) : JPanel(BorderLayout()) {
         }
         group.add(myAnalyzeDependenciesAction)
         group.add(GraphAnalysisAction())
+        group.add(CompareFastModeAction())
         val toolbar = ActionManager.getInstance().createActionToolbar("PackageDependencies", group, true)
         return toolbar.component
     }
@@ -0,0 +1,92 @@
+package com.github.pberdnik.dependenciesanalyzerplugin.views
+
+import com.github.pberdnik.dependenciesanalyzerplugin.storage.GraphStorageService
+import com.intellij.openapi.components.ServiceManager
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.openapi.vfs.VirtualFileWithId
+import com.intellij.ui.JBColor
+import com.intellij.ui.SimpleTextAttributes
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap
+import java.util.concurrent.atomic.LongAdder
+
+private val REGULAR_TEXT = SimpleTextAttributes.REGULAR_ATTRIBUTES
+private val GREEN_TEXT = SimpleTextAttributes(SimpleTextAttributes.STYLE_PLAIN, JBColor(JBColor.green.darker(), JBColor.green))
+private val RED_TEXT = SimpleTextAttributes(SimpleTextAttributes.STYLE_PLAIN, JBColor(JBColor.red.darker(), JBColor.red))
+private val YELLOW_TEXT = SimpleTextAttributes(SimpleTextAttributes.STYLE_PLAIN, JBColor(JBColor.yellow.darker(), JBColor.yellow))
+private val GRAY_TEXT = SimpleTextAttributes(SimpleTextAttributes.STYLE_PLAIN, JBColor.GRAY)
+
+/**
+ * Formatted text fragments of one project view node.
+ */
+class Decoration(val texts: Array<String>, val attributes: Array<SimpleTextAttributes>) {
+    companion object {
+        val NONE = Decoration(emptyArray(), emptyArray())
+    }
+}
+
+/**
+ * Project view decorations keyed by file id. A decoration is formatted the first time its file is shown and reused on
+ * every repaint until new analysis results are published, so a repaint only looks up an int key.
+ *
+ * Counters of decorated nodes, cache misses and time spent show what decorating costs.
+ */
+class DecorationCache(project: Project) {
+    private val storage = GraphStorageService.getInstance(project)
+    private val decorations = Int2ObjectOpenHashMap<Decoration>()
+    private var version = -1
+
+    val decorateCount = LongAdder()
+    val missCount = LongAdder()
+    val decorateNanos = LongAdder()
+
+    fun get(file: VirtualFile): Decoration {
+        val id = (file as? VirtualFileWithId)?.id ?: return format(file)
+        val analysisVersion = storage.analysisVersion
+        synchronized(decorations) {
+            if (version != analysisVersion) {
+                decorations.clear()
+                version = analysisVersion
+            }
+            decorations.get(id)?.let { return it }
+        }
+        missCount.increment()
+        val decoration = format(file)
+        synchronized(decorations) {
+            if (version == analysisVersion) decorations.put(id, decoration)
+        }
+        return decoration
+    }
+
+    private fun format(file: VirtualFile): Decoration {
+        val nodeView = storage.nodeView(file) ?: return Decoration.NONE
+        val texts = mutableListOf(file.name)
+        val attributes = mutableListOf(REGULAR_TEXT)
+        when (nodeView) {
+            is DirNodeView -> with(nodeView) {
+                if (greenSize > 0) texts.add(" $greenSize").also { attributes.add(GREEN_TEXT) }
+                if (redSize > 0) texts.add(" $redSize").also { attributes.add(RED_TEXT) }
+                if (yellowSize > 0) texts.add(" $yellowSize").also { attributes.add(YELLOW_TEXT) }
+            }
+            is FileNodeView -> with(nodeView) {
+                texts.add(" $size [$depth]")
+                attributes.add(
+                    when (color) {
+                        FileNodeViewColor.GREEN -> GREEN_TEXT
+                        FileNodeViewColor.RED -> RED_TEXT
+                        FileNodeViewColor.YELLOW -> YELLOW_TEXT
+                        FileNodeViewColor.GRAY -> GRAY_TEXT
+                    }
+                )
+                if (isCycle) texts.add(" {C}").also { attributes.add(RED_TEXT) }
+            }
+        }
+        return Decoration(texts.toTypedArray(), attributes.toTypedArray())
+    }
+
+    companion object {
+        fun getInstance(project: Project): DecorationCache {
+            return ServiceManager.getService(project, DecorationCache::class.java)
+        }
+    }
+}
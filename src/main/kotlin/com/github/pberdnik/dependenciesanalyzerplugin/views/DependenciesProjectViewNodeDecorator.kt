@@ -1,6 +1,5 @@
 package com.github.pberdnik.dependenciesanalyzerplugin.views
 
-import com.github.pberdnik.dependenciesanalyzerplugin.storage.GraphStorageService
 import com.intellij.ide.projectView.PresentationData
 import com.intellij.ide.projectView.ProjectViewNode
 import com.intellij.ide.projectView.ProjectViewNodeDecorator
@@ -8,48 +7,29 @@ import com.intellij.openapi.diagnostic.Logger
 import com.intellij.openapi.project.Project
 import com.intellij.psi.PsiElement
 import com.intellij.psi.util.PsiUtilCore
-import com.intellij.ui.JBColor
-import com.intellij.ui.SimpleTextAttributes
-
-private val REGULAR_TEXT = SimpleTextAttributes.REGULAR_ATTRIBUTES
-private val GREEN_TEXT = SimpleTextAttributes(SimpleTextAttributes.STYLE_PLAIN, JBColor(JBColor.green.darker(), JBColor.green))
-private val RED_TEXT = SimpleTextAttributes(SimpleTextAttributes.STYLE_PLAIN, JBColor(JBColor.red.darker(), JBColor.red))
-private val YELLOW_TEXT = SimpleTextAttributes(SimpleTextAttributes.STYLE_PLAIN, JBColor(JBColor.yellow.darker(), JBColor.yellow))
-private val GRAY_TEXT = SimpleTextAttributes(SimpleTextAttributes.STYLE_PLAIN, JBColor.GRAY)
 
 class DependenciesProjectViewNodeDecorator(val project: Project) : ProjectViewNodeDecorator {
     private val LOG = Logger.getInstance(DependenciesProjectViewNodeDecorator::class.java)
-    private val storage = GraphStorageService.getInstance(project)
+    private val decorationCache = DecorationCache.getInstance(project)
 
     init {
-        LOG.warn("INIT; storage=$storage")
+        LOG.warn("INIT; decorationCache=$decorationCache")
     }
 
     override fun decorate(node: ProjectViewNode<*>?, data: PresentationData?) {
         if (node == null || data == null) return
         val value = node.value ?: return
-        val file = node.virtualFile ?: PsiUtilCore.getVirtualFile(value as? PsiElement)
-        val path = file?.path ?: return
-        val nodeView = storage.nodeViews[path] ?: return
-        data.clearText()
-        data.presentableText = ""
-        data.addText(file.name, REGULAR_TEXT)
-        when (nodeView) {
-            is DirNodeView -> with(nodeView) {
-                if (greenSize > 0) data.addText(" $greenSize", GREEN_TEXT)
-                if (redSize > 0) data.addText(" $redSize", RED_TEXT)
-                if (yellowSize > 0) data.addText(" $yellowSize", YELLOW_TEXT)
-            }
-            is FileNodeView -> with(nodeView) {
-                val textColor = when (color) {
-                    FileNodeViewColor.GREEN -> GREEN_TEXT
-                    FileNodeViewColor.RED -> RED_TEXT
-                    FileNodeViewColor.YELLOW -> YELLOW_TEXT
-                    FileNodeViewColor.GRAY -> GRAY_TEXT
-                }
-                data.addText(" $size [$depth]", textColor)
-                if (isCycle) data.addText(" {C}", RED_TEXT)
+        val start = System.nanoTime()
+        val file = node.virtualFile ?: PsiUtilCore.getVirtualFile(value as? PsiElement) ?: return
+        val decoration = decorationCache.get(file)
+        decorationCache.decorateCount.increment()
+        if (decoration !== Decoration.NONE) {
+            data.clearText()
+            data.presentableText = ""
+            for (i in decoration.texts.indices) {
+                data.addText(decoration.texts[i], decoration.attributes[i])
             }
         }
+        decorationCache.decorateNanos.add(System.nanoTime() - start)
     }
-}
\ No newline at end of file
+}